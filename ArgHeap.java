@@ -0,0 +1,156 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+/**
+ *  A min-heap of query arguments, each keyed by an int such as the
+ *  argument's current docid or location.  Arguments are identified by
+ *  their index in the operator's argument list.  Entries are stored
+ *  in parallel primitive arrays, so operations don't allocate.  Ties
+ *  are broken by argument index, so the order is deterministic.
+ *  <p>
+ *  Operators that merge or sweep their arguments use the heap to find
+ *  the smallest argument in O(log n) instead of scanning all n.
+ *  </p>
+ */
+public class ArgHeap {
+
+  //  --------------- Constants and variables -----------------------
+
+  private int[] args;
+  private int[] keys;
+  private int size = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty heap.
+   *  @param capacity The largest number of arguments that it will hold.
+   */
+  public ArgHeap (int capacity) {
+    this.args = new int[Math.max (1, capacity)];
+    this.keys = new int[Math.max (1, capacity)];
+  }
+
+  /**
+   *  Add an argument.
+   *  @param arg The index of the argument.
+   *  @param key The argument's key.
+   */
+  public void add (int arg, int key) {
+    int i = this.size++;
+
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! this.isLess (arg, key, parent))
+        break;
+
+      this.args[i] = this.args[parent];
+      this.keys[i] = this.keys[parent];
+      i = parent;
+    }
+
+    this.args[i] = arg;
+    this.keys[i] = key;
+  }
+
+  /**
+   *  Remove every argument.
+   */
+  public void clear () {
+    this.size = 0;
+  }
+
+  /**
+   *  Returns true if the heap has no arguments.
+   *  @return True if the heap is empty.
+   */
+  public boolean isEmpty () {
+    return this.size == 0;
+  }
+
+  /**
+   *  Get the number of arguments in the heap.
+   *  @return The number of arguments.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the argument with the smallest key.  The heap must not be empty.
+   *  @return The index of the argument.
+   */
+  public int topArg () {
+    return this.args[0];
+  }
+
+  /**
+   *  Get the smallest key.  The heap must not be empty.
+   *  @return The key.
+   */
+  public int topKey () {
+    return this.keys[0];
+  }
+
+  /**
+   *  Remove the argument with the smallest key.  The heap must not
+   *  be empty.
+   */
+  public void pop () {
+    this.size--;
+
+    if (this.size > 0)
+      this.siftDown (this.args[this.size], this.keys[this.size]);
+  }
+
+  /**
+   *  Change the key of the argument with the smallest key.  This is
+   *  cheaper than pop followed by add.  The heap must not be empty.
+   *  @param key The argument's new key.
+   */
+  public void replaceTopKey (int key) {
+    this.siftDown (this.args[0], key);
+  }
+
+  /**
+   *  Put an entry in the root's place and move it down to where it
+   *  belongs.
+   */
+  private void siftDown (int arg, int key) {
+    int i = 0;
+
+    while (true) {
+      int child = 2 * i + 1;
+
+      if (child >= this.size)
+        break;
+
+      if ((child + 1 < this.size) &&
+          this.isLess (this.args[child + 1], this.keys[child + 1], child))
+        child++;
+
+      if (! this.isLess (this.args[child], this.keys[child], arg, key))
+        break;
+
+      this.args[i] = this.args[child];
+      this.keys[i] = this.keys[child];
+      i = child;
+    }
+
+    this.args[i] = arg;
+    this.keys[i] = key;
+  }
+
+  /**
+   *  Returns true if an entry is less than the entry at index i.
+   */
+  private boolean isLess (int arg, int key, int i) {
+    return this.isLess (arg, key, this.args[i], this.keys[i]);
+  }
+
+  private boolean isLess (int arg1, int key1, int arg2, int key2) {
+    return (key1 < key2) || ((key1 == key2) && (arg1 < arg2));
+  }
+}
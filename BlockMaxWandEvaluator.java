@@ -0,0 +1,304 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A rank-safe Block-Max WAND evaluator for BM25 #SUM queries whose
+ *  arguments are SCORE operators over materialized inverted lists.
+ *  <p>
+ *  Like MaxScoreEvaluator, each argument has a global score bound.
+ *  The arguments are kept in order of their current docids, and the
+ *  pivot is the first docid at which the bounds of the arguments up
+ *  to it reach the threshold of the top k.  Documents before the
+ *  pivot can't enter the top k.  Before the pivot is scored, the
+ *  bounds are tightened with the impact metadata of each list's
+ *  current skip index block (the largest tf and the shortest document
+ *  in the block).  If the block bounds can't reach the threshold, no
+ *  document up to the end of the shortest of those blocks can, so
+ *  the arguments skip those blocks without scoring them.
+ *  </p><p>
+ *  The documents and scores are the same as QrySopSum produces.
+ *  Scores are added in argument order, as QrySopSum adds them, so
+ *  they are identical, not just close.
+ *  </p>
+ */
+public class BlockMaxWandEvaluator {
+
+  //  --------------- Constants and variables -----------------------
+
+  private RetrievalModelBM25 model;
+
+  /**
+   *  The SCORE operators, their inverted lists, and their global
+   *  bounds, in argument order.
+   */
+  private QrySopScore[] scorers;
+  private QryIop[] lists;
+  private double[] bounds;
+
+  /**
+   *  The parts of each argument's BM25 weight that don't depend on
+   *  the document, for computing block bounds.
+   */
+  private double[] idfs;
+  private double[] lengthNorms;
+  private double k_1;
+  private double b;
+
+  /**
+   *  The arguments that aren't exhausted, in order of current docid.
+   */
+  private int[] live;
+
+  /**
+   *  The score of each argument in the current candidate.
+   */
+  private double[] argScores;
+  private boolean[] argMatched;
+
+  /**
+   *  The top k results so far.
+   */
+  private TopKCollector collector;
+
+  /**
+   *  Statistics.
+   */
+  private long pivots = 0;
+  private long docsScored = 0;
+  private long blockSkips = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Returns true if the evaluator can evaluate the query with the
+   *  retrieval model.  The query must be initialized.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is a BM25 #SUM of SCORE operators whose
+   *  inverted lists are materialized.
+   */
+  public static boolean isApplicable (Qry q, RetrievalModel r) {
+
+    if (! MaxScoreEvaluator.isApplicable (q, r))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (((QryIop) q_i.args.get (0)).invertedList == null)
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Prepare to evaluate a query.  The query must be initialized.
+   *  @param q The query, which must satisfy isApplicable.
+   *  @param model The BM25 retrieval model.
+   *  @param collector The collector of the top results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public BlockMaxWandEvaluator (QrySopSum q, RetrievalModelBM25 model,
+                                TopKCollector collector)
+    throws IOException {
+
+    int n = q.args.size ();
+
+    this.model = model;
+    this.collector = collector;
+    this.k_1 = model.getK_1 ();
+    this.b = model.getB ();
+    this.scorers = new QrySopScore[n];
+    this.lists = new QryIop[n];
+    this.bounds = new double[n];
+    this.idfs = new double[n];
+    this.lengthNorms = new double[n];
+    this.live = new int[n];
+    this.argScores = new double[n];
+    this.argMatched = new boolean[n];
+
+    for (int i = 0; i < n; i++) {
+      this.scorers[i] = (QrySopScore) q.args.get (i);
+      this.lists[i] = (QryIop) this.scorers[i].args.get (0);
+      this.idfs[i] = this.lists[i].idf;
+      this.lengthNorms[i] = this.b / this.lists[i].avg_docLen;
+      this.bounds[i] = this.getBound (i, this.lists[i].getMaxTf (), 0);
+    }
+  }
+
+  /**
+   *  Bound the BM25 score of an argument.
+   *  @param i The index of the argument.
+   *  @param maxTf The largest tf of the documents.
+   *  @param minLength The shortest length of the documents.
+   *  @return A bound on the score of each of the documents.
+   */
+  private double getBound (int i, double maxTf, double minLength) {
+    double norm = this.k_1 * ((1 - this.b) +
+                              ((minLength > 0) ? this.lengthNorms[i] * minLength : 0));
+
+    return MaxScoreEvaluator.getBound (this.idfs[i], maxTf, norm);
+  }
+
+  /**
+   *  Evaluate the query.
+   *  @return The top results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList evaluate () throws IOException {
+
+    double threshold = this.collector.getThreshold ();
+
+    while (true) {
+
+      //  Order the arguments that aren't exhausted by current docid.
+      //  The order changes little between iterations, so insertion
+      //  sort is fast.
+
+      int m = 0;
+
+      for (int i = 0; i < this.lists.length; i++) {
+        if (! this.lists[i].docIteratorHasMatch (this.model))
+          continue;
+
+        int docid = this.lists[i].docIteratorGetMatch ();
+        int j = m++;
+
+        while ((j > 0) &&
+               (this.lists[this.live[j - 1]].docIteratorGetMatch () > docid)) {
+          this.live[j] = this.live[j - 1];
+          j--;
+        }
+
+        this.live[j] = i;
+      }
+
+      //  Find the pivot.  Arguments with the pivot's docid are
+      //  included, because they contribute to its score.
+
+      double boundSum = 0;
+      int p = -1;
+
+      for (int j = 0; j < m; j++) {
+        boundSum += this.bounds[this.live[j]];
+
+        if (boundSum >= threshold) {
+          p = j;
+          break;
+        }
+      }
+
+      if (p < 0)
+        break;
+
+      int pivotDocid = this.docid (p);
+
+      while ((p + 1 < m) && (this.docid (p + 1) == pivotDocid))
+        p++;
+
+      this.pivots++;
+
+      //  Tighten the bounds with the blocks that hold the pivot.  No
+      //  document before the end of the shortest block, or before the
+      //  next argument's docid, can score more than the block bounds.
+
+      double blockBoundSum = 0;
+      int nextDocid = (p + 1 < m) ? this.docid (p + 1) : Integer.MAX_VALUE;
+
+      for (int j = 0; j <= p; j++) {
+        int i = this.live[j];
+        int block = this.lists[i].docIteratorGetBlock (pivotDocid);
+
+        if (block < 0)
+          continue;
+
+        InvList list = this.lists[i].invertedList;
+
+        blockBoundSum += this.getBound (i, list.getBlockMaxTf (block),
+                                        list.getBlockMinLength (block));
+        nextDocid = Math.min (nextDocid, list.getBlockLastDocid (block) + 1);
+      }
+
+      if (blockBoundSum < threshold) {
+        this.blockSkips++;
+
+        for (int j = 0; j <= p; j++)
+          this.lists[this.live[j]].docIteratorAdvanceTo (nextDocid);
+
+        continue;
+      }
+
+      //  If every argument up to the pivot is on the pivot, score it.
+      //  Otherwise move them to the pivot; the documents that they
+      //  skip can't reach the threshold.
+
+      if (this.docid (0) != pivotDocid) {
+        for (int j = 0; j <= p; j++)
+          this.lists[this.live[j]].docIteratorAdvanceTo (pivotDocid);
+
+        continue;
+      }
+
+      Arrays.fill (this.argMatched, false);
+
+      for (int j = 0; j <= p; j++) {
+        int i = this.live[j];
+
+        this.argScores[i] = this.scorers[i].getScore (this.model);
+        this.argMatched[i] = true;
+      }
+
+      this.docsScored++;
+
+      if (this.collect (pivotDocid))
+        threshold = this.collector.getThreshold ();
+
+      for (int j = 0; j <= p; j++)
+        this.lists[this.live[j]].docIteratorAdvancePast (pivotDocid);
+    }
+
+    return this.collector.getScoreList ();
+  }
+
+  /**
+   *  Get the current docid of the j'th argument in docid order.
+   */
+  private int docid (int j) {
+    return this.lists[this.live[j]].docIteratorGetMatch ();
+  }
+
+  /**
+   *  Add the current candidate to the top results if it belongs there.
+   *  Its score is the sum of the argument scores in argument order.
+   *  @param docid The document.
+   *  @return True if the candidate was added.
+   */
+  private boolean collect (int docid) {
+
+    double score = 0.0;
+
+    for (int i = 0; i < this.argScores.length; i++) {
+      if (this.argMatched[i])
+        score += this.argScores[i];
+    }
+
+    return this.collector.collect (docid, score);
+  }
+
+  /**
+   *  Get a report of how much of the query was pruned:  the documents
+   *  that match the query, the pivots that were considered, the
+   *  documents that were scored, and the block skips.  Counting the
+   *  matching documents reads the inverted lists again, so it should
+   *  only be done when the report is wanted.
+   *  @return The report.
+   */
+  public String getPruningReport () {
+    return "Block-Max WAND:  " + MaxScoreEvaluator.countMatches (this.lists) +
+      " docs matched, " + this.pivots + " pivots, " + this.docsScored +
+      " docs scored, " + this.blockSkips + " block skips";
+  }
+}
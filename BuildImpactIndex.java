@@ -0,0 +1,171 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.util.*;
+
+/**
+ *  An offline utility that writes an ImpactIndex file of BM25
+ *  impacts for the terms of each field of an index.  By default the
+ *  file is written to the index directory, where Idx.initialize finds
+ *  it.  The impacts are only valid for the k_1 and b that they were
+ *  built with.  Run it to see a simple usage message.
+ */
+public class BuildImpactIndex {
+
+    static String usage =
+	"Usage:  java " +
+	System.getProperty("sun.java.command") +
+	" -index INDEX_PATH -k_1 K_1 -b B\n\n" +
+	"where options include\n" +
+	"    -bits N\t\tthe bits of each impact (default: 8)\n" +
+	"    -fields FIELD[,FIELD...]\n" +
+	"\t\t\tthe fields to index (default: all indexed fields)\n" +
+	"    -terms N\t\tonly the N most frequent terms of each field\n" +
+	"\t\t\t(default: all terms)\n" +
+	"    -output FILE\tthe file to write (default: " +
+	ImpactIndex.FILE_NAME + " in the index)\n";
+
+    public static void main(String[] args) throws IOException {
+
+	String indexPath = null;
+	String outputPath = null;
+	String fieldList = null;
+	double k_1 = -1;
+	double b = -1;
+	int bits = 8;
+	int n = -1;
+
+	for (int i=0; i < args.length; i++) {
+	    if ("-index".equals (args[i]) && ((i+1) < args.length)) {
+		indexPath = args[++i];
+	    } else if ("-k_1".equals (args[i]) && ((i+1) < args.length)) {
+		k_1 = Double.parseDouble (args[++i]);
+	    } else if ("-b".equals (args[i]) && ((i+1) < args.length)) {
+		b = Double.parseDouble (args[++i]);
+	    } else if ("-bits".equals (args[i]) && ((i+1) < args.length)) {
+		bits = Integer.parseInt (args[++i]);
+	    } else if ("-terms".equals (args[i]) && ((i+1) < args.length)) {
+		n = Integer.parseInt (args[++i]);
+	    } else if ("-fields".equals (args[i]) && ((i+1) < args.length)) {
+		fieldList = args[++i];
+	    } else if ("-output".equals (args[i]) && ((i+1) < args.length)) {
+		outputPath = args[++i];
+	    } else {
+		System.err.println ("\nWarning:  Unknown argument " + args[i]
+				    + " ignored.");
+	    }
+	}
+
+	if ((indexPath == null) || (k_1 < 0) || (b < 0) || (b > 1)) {
+	    System.err.println (usage);
+	    System.exit (1);
+	}
+
+	File output = (outputPath == null) ?
+	    new File (indexPath, ImpactIndex.FILE_NAME) :
+	    new File (outputPath);
+
+	Idx.initialize (indexPath);
+
+	Collection<String> fields = (fieldList == null) ?
+	    MultiFields.getIndexedFields (Idx.INDEXREADER) :
+	    Arrays.asList (fieldList.split (","));
+
+	Map<String,List<String>> terms = new LinkedHashMap<String,List<String>> ();
+
+	for (String field : fields) {
+	    terms.put (field, (n > 0) ?
+		       BuildPostingCache.topTerms (Idx.INDEXREADER, field, n) :
+		       allTerms (Idx.INDEXREADER, field));
+	}
+
+	//  Impacts share one scale, so the largest score must be known
+	//  before the first list is written.  The lists are read twice
+	//  rather than held in memory.
+
+	double maxScore = 0;
+
+	for (Map.Entry<String,List<String>> e : terms.entrySet ()) {
+	    for (String term : e.getValue ()) {
+		InvList list = new InvList (term, e.getKey (), false);
+
+		for (double score : scores (list, k_1, b))
+		    maxScore = Math.max (maxScore, score);
+	    }
+	}
+
+	ImpactIndex.Writer writer =
+	    new ImpactIndex.Writer (output, bits, k_1, b, maxScore);
+	int count = 0;
+
+	for (Map.Entry<String,List<String>> e : terms.entrySet ()) {
+	    for (String term : e.getValue ()) {
+		InvList list = new InvList (term, e.getKey (), false);
+		int[] docids = new int[list.df];
+
+		for (int i = 0; i < list.df; i++)
+		    docids[i] = list.getDocid (i);
+
+		writer.add (e.getKey (), term, docids, scores (list, k_1, b));
+		count++;
+	    }
+	}
+
+	writer.close ();
+
+	System.out.println ("Wrote " + count + " impact-ordered lists to " +
+			    output + " (" + output.length () + " bytes)");
+    }
+
+    /*
+     *  allTerms returns every term of a field.  Fields without
+     *  locations (e.g., externalId) have no lengths and can't be
+     *  scored, so they have none.
+     */
+    static List<String> allTerms (IndexReader reader, String field)
+	throws IOException {
+
+	Terms terms = MultiFields.getTerms (reader, field);
+	List<String> result = new ArrayList<String> ();
+
+	if ((terms == null) || ! terms.hasPositions ())
+	    return result;
+
+	TermsEnum ithTerm = terms.iterator (null);
+	BytesRef term;
+
+	while ((term = ithTerm.next ()) != null)
+	    result.add (term.utf8ToString ());
+
+	return result;
+    }
+
+    /*
+     *  scores returns the BM25 score of each posting of a list for a
+     *  query term that occurs once, computed as QrySopScore and
+     *  QryIopTerm compute it.
+     */
+    static double[] scores (InvList list, double k_1, double b)
+	throws IOException {
+
+	Idx.FieldStats stats = Idx.getFieldStats (list.field);
+	DocLengthStore.FieldLengths lengths = Idx.getFieldLengths (list.field);
+	double docNum = stats.numDocs;
+	double avg_docLen = stats.averageLength;
+	double idf = Math.max (0, Math.log ((docNum - list.df + 0.5) / (list.df + 0.5)));
+	double[] scores = new double[list.df];
+
+	for (int i = 0; i < list.df; i++) {
+	    double tf = list.getTf (i);
+	    double docLen = lengths.get (list.getDocid (i));
+
+	    scores[i] = idf * (tf / (tf + k_1 * ((1 - b) + b * (docLen / avg_docLen))));
+	}
+
+	return scores;
+    }
+}
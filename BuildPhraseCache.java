@@ -0,0 +1,235 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  An offline utility that writes a phrase cache:  a PostingCache file
+ *  of the #NEAR/1 lists of frequent pairs of adjacent terms.  Pairs
+ *  are mined from a query log (the #NEAR/1 operators over two terms
+ *  that occur most often in it) or, without a log, from collection
+ *  statistics (the pairs of frequent terms that occur together most
+ *  often).  By default the file is written to the index directory,
+ *  where Idx.initialize finds it, and QryEval.optimizeQuery then
+ *  substitutes the precomputed lists.  Run it to see a simple usage
+ *  message.
+ */
+public class BuildPhraseCache {
+
+    static String usage =
+	"Usage:  java " +
+	System.getProperty("sun.java.command") +
+	" -index INDEX_PATH -pairs N\n\n" +
+	"where options include\n" +
+	"    -queries FILE\tmine the query log FILE (qid:query lines)\n" +
+	"    -terms N\t\twithout a query log, pair the N most frequent\n" +
+	"\t\t\tterms of each field (default: 50)\n" +
+	"    -fields FIELD[,FIELD...]\n" +
+	"\t\t\tthe fields to mine without a query log\n" +
+	"\t\t\t(default: body)\n" +
+	"    -output FILE\tthe file to write (default: " +
+	PostingCache.PHRASE_FILE_NAME + " in the index)\n";
+
+    public static void main(String[] args) throws IOException {
+
+	String indexPath = null;
+	String outputPath = null;
+	String queryPath = null;
+	String fieldList = "body";
+	int pairs = -1;
+	int n = 50;
+
+	for (int i=0; i < args.length; i++) {
+	    if ("-index".equals (args[i]) && ((i+1) < args.length)) {
+		indexPath = args[++i];
+	    } else if ("-pairs".equals (args[i]) && ((i+1) < args.length)) {
+		pairs = Integer.parseInt (args[++i]);
+	    } else if ("-queries".equals (args[i]) && ((i+1) < args.length)) {
+		queryPath = args[++i];
+	    } else if ("-terms".equals (args[i]) && ((i+1) < args.length)) {
+		n = Integer.parseInt (args[++i]);
+	    } else if ("-fields".equals (args[i]) && ((i+1) < args.length)) {
+		fieldList = args[++i];
+	    } else if ("-output".equals (args[i]) && ((i+1) < args.length)) {
+		outputPath = args[++i];
+	    } else {
+		System.err.println ("\nWarning:  Unknown argument " + args[i]
+				    + " ignored.");
+	    }
+	}
+
+	if ((indexPath == null) || (pairs < 1) || (n < 1)) {
+	    System.err.println (usage);
+	    System.exit (1);
+	}
+
+	File output = (outputPath == null) ?
+	    new File (indexPath, PostingCache.PHRASE_FILE_NAME) :
+	    new File (outputPath);
+
+	//  The index's phrase cache isn't used, wherever the output
+	//  goes.  Otherwise optimizeQuery would rewrite the #NEAR/1
+	//  operators that are being mined, and Idx would map the file
+	//  while it may be rewritten.
+
+	Idx.setUsePhraseCache (false);
+	Idx.initialize (indexPath);
+	QryEval.configureAnalyzer ();
+
+	Map<String,Integer> counts = (queryPath != null) ?
+	    logPairs (queryPath) :
+	    collectionPairs (Arrays.asList (fieldList.split (",")), n);
+
+	PostingCache.Writer writer = new PostingCache.Writer (output);
+	int count = 0;
+
+	for (String key : topPairs (counts, pairs)) {
+	    String[] p = key.split ("\t");
+	    InvList list = phraseInvList (p[1], p[2], p[0]);
+
+	    if (list.df > 0) {
+		writer.add (p[0], PostingCache.phraseKey (p[1], p[2]), list);
+		count++;
+	    }
+	}
+
+	writer.close ();
+
+	System.out.println ("Wrote " + count + " phrase lists to " +
+			    output + " (" + output.length () + " bytes)");
+    }
+
+    /*
+     *  logPairs counts the #NEAR/1 operators over two terms in a query
+     *  log, after the queries are parsed and optimized as QryEval does
+     *  it, so stopwords and stemming match what the rewrite will see.
+     *  Keys are field, term1, term2, separated by tabs.
+     */
+    static Map<String,Integer> logPairs (String queryPath)
+	throws IOException {
+
+	Map<String,Integer> counts = new HashMap<String,Integer> ();
+	RetrievalModel model = new RetrievalModelUnrankedBoolean ();
+	BufferedReader input = new BufferedReader (new FileReader (queryPath));
+
+	try {
+	    String line;
+
+	    while ((line = input.readLine ()) != null) {
+		int d = line.indexOf (':');
+
+		if (d < 0)
+		    continue;
+
+		//  A log may have queries that don't parse.  They are
+		//  skipped, because QryEval couldn't run them either.
+
+		Qry q;
+
+		try {
+		    q = QryEval.optimizeQuery (
+			QryEval.parseQuery (line.substring (d + 1), model));
+		} catch (IllegalArgumentException e) {
+		    System.err.println ("Warning:  Skipped query " + line +
+					":  " + e.getMessage ());
+		    continue;
+		}
+
+		if (q != null)
+		    countPairs (q, counts);
+	    }
+	} finally {
+	    input.close ();
+	}
+
+	return counts;
+    }
+
+    /*
+     *  countPairs adds the #NEAR/1 operators over two terms in a query
+     *  tree to counts.
+     */
+    static void countPairs (Qry q, Map<String,Integer> counts) {
+
+	if ((q instanceof QryIopNear) &&
+	    (((QryIopNear) q).getDistance () == 1) &&
+	    (q.args.size () == 2) &&
+	    (q.args.get (0) instanceof QryIopTerm) &&
+	    (q.args.get (1) instanceof QryIopTerm)) {
+	    String key = ((QryIop) q).getField () + "\t" +
+		((QryIopTerm) q.args.get (0)).getTerm () + "\t" +
+		((QryIopTerm) q.args.get (1)).getTerm ();
+	    Integer c = counts.get (key);
+
+	    counts.put (key, (c == null) ? 1 : c + 1);
+	    return;
+	}
+
+	for (Qry q_i : q.args)
+	    countPairs (q_i, counts);
+    }
+
+    /*
+     *  collectionPairs returns the document frequency of the #NEAR/1
+     *  list of each ordered pair of the n most frequent terms in each
+     *  field.  Keys are field, term1, term2, separated by tabs.
+     */
+    static Map<String,Integer> collectionPairs (List<String> fields, int n)
+	throws IOException {
+
+	Map<String,Integer> counts = new HashMap<String,Integer> ();
+
+	for (String field : fields) {
+	    List<String> terms =
+		BuildPostingCache.topTerms (Idx.INDEXREADER, field, n);
+
+	    for (String term1 : terms) {
+		for (String term2 : terms) {
+		    int df = phraseInvList (term1, term2, field).df;
+
+		    if (df > 0)
+			counts.put (field + "\t" + term1 + "\t" + term2, df);
+		}
+	    }
+	}
+
+	return counts;
+    }
+
+    /*
+     *  topPairs returns the keys with the n largest counts, largest
+     *  first.  Ties are broken by key, so the output is deterministic.
+     */
+    static List<String> topPairs (final Map<String,Integer> counts, int n) {
+
+	List<String> keys = new ArrayList<String> (counts.keySet ());
+
+	Collections.sort (keys, new Comparator<String> () {
+		public int compare (String a, String b) {
+		    int c = counts.get (b).compareTo (counts.get (a));
+
+		    return (c != 0) ? c : a.compareTo (b);
+		}
+	    });
+
+	return (keys.size () > n) ? keys.subList (0, n) : keys;
+    }
+
+    /*
+     *  phraseInvList returns the #NEAR/1 list of a pair of terms, with
+     *  locations, as QryIopNear produces it.
+     */
+    static InvList phraseInvList (String term1, String term2, String field)
+	throws IOException {
+
+	QryIopNear q = new QryIopNear (1);
+
+	q.appendArg (new QryIopTerm (term1, field));
+	q.appendArg (new QryIopTerm (term2, field));
+	q.positionsNeeded = true;
+	q.initialize (new RetrievalModelUnrankedBoolean ());
+
+	return q.invertedList;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+import org.apache.lucene.index.*;
+
+/**
+ *  An offline utility that writes a PostingCache file for the most
+ *  frequent terms of each field of an index.  By default the file is
+ *  written to the index directory, where Idx.initialize finds it.
+ *  Run it to see a simple usage message.
+ */
+public class BuildPostingCache {
+
+    static String usage =
+	"Usage:  java " +
+	System.getProperty("sun.java.command") +
+	" -index INDEX_PATH -terms N\n\n" +
+	"where options include\n" +
+	"    -fields FIELD[,FIELD...]\n" +
+	"\t\t\tthe fields to cache (default: all indexed fields)\n" +
+	"    -output FILE\tthe file to write (default: " +
+	PostingCache.FILE_NAME + " in the index)\n";
+
+    public static void main(String[] args) throws IOException {
+
+	String indexPath = null;
+	String outputPath = null;
+	String fieldList = null;
+	int n = -1;
+
+	for (int i=0; i < args.length; i++) {
+	    if ("-index".equals (args[i]) && ((i+1) < args.length)) {
+		indexPath = args[++i];
+	    } else if ("-terms".equals (args[i]) && ((i+1) < args.length)) {
+		n = Integer.parseInt (args[++i]);
+	    } else if ("-fields".equals (args[i]) && ((i+1) < args.length)) {
+		fieldList = args[++i];
+	    } else if ("-output".equals (args[i]) && ((i+1) < args.length)) {
+		outputPath = args[++i];
+	    } else {
+		System.err.println ("\nWarning:  Unknown argument " + args[i]
+				    + " ignored.");
+	    }
+	}
+
+	if ((indexPath == null) || (n < 1)) {
+	    System.err.println (usage);
+	    System.exit (1);
+	}
+
+	File output = (outputPath == null) ?
+	    new File (indexPath, PostingCache.FILE_NAME) :
+	    new File (outputPath);
+
+	//  Idx provides InvList with the index.  An existing cache is
+	//  removed first so that Idx doesn't map the file while it is
+	//  being rewritten.
+
+	output.delete ();
+	Idx.initialize (indexPath);
+
+	Collection<String> fields = (fieldList == null) ?
+	    MultiFields.getIndexedFields (Idx.INDEXREADER) :
+	    Arrays.asList (fieldList.split (","));
+
+	PostingCache.Writer writer = new PostingCache.Writer (output);
+	int count = 0;
+
+	for (String field : fields) {
+	    for (String term : topTerms (Idx.INDEXREADER, field, n)) {
+		writer.add (field, term, new InvList (term, field));
+		count++;
+	    }
+	}
+
+	writer.close ();
+
+	System.out.println ("Wrote " + count + " inverted lists to " +
+			    output + " (" + output.length () + " bytes)");
+    }
+
+    /*
+     *  topTerms returns the n terms in a field that have the highest
+     *  document frequency, most frequent first.  Fields that don't
+     *  store locations have none.
+     */
+    static List<String> topTerms (IndexReader reader, String field, int n)
+	throws IOException {
+
+	Terms terms = MultiFields.getTerms (reader, field);
+	List<String> result = new ArrayList<String> ();
+
+	//  Fields without locations (e.g., externalId) can't be cached.
+
+	if ((terms == null) || ! terms.hasPositions ())
+	    return result;
+
+	//  A min-heap of the n most frequent terms seen so far.
+
+	PriorityQueue<Map.Entry<String,Integer>> heap =
+	    new PriorityQueue<Map.Entry<String,Integer>> (n + 1,
+		new Comparator<Map.Entry<String,Integer>> () {
+		    public int compare (Map.Entry<String,Integer> a,
+					Map.Entry<String,Integer> b) {
+			return a.getValue ().compareTo (b.getValue ());
+		    }
+		});
+
+	TermsEnum ithTerm = terms.iterator (null);
+
+	while (ithTerm.next () != null) {
+	    int df = ithTerm.docFreq ();
+
+	    if ((heap.size () < n) || (df > heap.peek ().getValue ())) {
+		heap.add (new AbstractMap.SimpleEntry<String,Integer> (
+			      ithTerm.term ().utf8ToString (), df));
+
+		if (heap.size () > n)
+		    heap.poll ();
+	    }
+	}
+
+	while (! heap.isEmpty ())
+	    result.add (heap.poll ().getKey ());
+
+	Collections.reverse (result);
+	return result;
+    }
+}
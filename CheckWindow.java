@@ -0,0 +1,242 @@
+/*
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+import java.util.*;
+
+/**
+ *  An offline utility that checks the #WINDOW operator against a
+ *  simple reference implementation:  the original sweep, which
+ *  rescans every argument's current location at each step.  Random
+ *  #WINDOW/n queries are built from frequent terms of the body field,
+ *  and the operator's inverted list must have the same docids, tfs,
+ *  and locations as the reference.  It exits with status 1 if they
+ *  differ.  Run it to see a simple usage message.
+ */
+public class CheckWindow {
+
+    static String usage =
+	"Usage:  java " +
+	System.getProperty("sun.java.command") +
+	" -index INDEX_PATH\n\n" +
+	"where options include\n" +
+	"    -queries N\t\tthe number of random queries (default: 200)\n" +
+	"    -terms N\t\tdraw terms from the N most frequent (default: 30)\n" +
+	"    -args N\t\tat most N terms per query (default: 8)\n" +
+	"    -seed N\t\tthe random seed (default: 1)\n";
+
+    public static void main(String[] args) throws IOException {
+
+	String indexPath = null;
+	int queries = 200;
+	int n = 30;
+	int maxArgs = 8;
+	long seed = 1;
+
+	for (int i=0; i < args.length; i++) {
+	    if ("-index".equals (args[i]) && ((i+1) < args.length)) {
+		indexPath = args[++i];
+	    } else if ("-queries".equals (args[i]) && ((i+1) < args.length)) {
+		queries = Integer.parseInt (args[++i]);
+	    } else if ("-terms".equals (args[i]) && ((i+1) < args.length)) {
+		n = Integer.parseInt (args[++i]);
+	    } else if ("-args".equals (args[i]) && ((i+1) < args.length)) {
+		maxArgs = Integer.parseInt (args[++i]);
+	    } else if ("-seed".equals (args[i]) && ((i+1) < args.length)) {
+		seed = Long.parseLong (args[++i]);
+	    } else {
+		System.err.println ("\nWarning:  Unknown argument " + args[i]
+				    + " ignored.");
+	    }
+	}
+
+	if ((indexPath == null) || (queries < 1) || (n < 1) || (maxArgs < 1)) {
+	    System.err.println (usage);
+	    System.exit (1);
+	}
+
+	Idx.initialize (indexPath);
+
+	List<String> terms =
+	    BuildPostingCache.topTerms (Idx.INDEXREADER, "body", n);
+
+	if (terms.isEmpty ()) {
+	    System.err.println ("The body field has no terms.");
+	    System.exit (1);
+	}
+
+	Random random = new Random (seed);
+	long postings = 0;
+	int failures = 0;
+
+	for (int q = 0; q < queries; q++) {
+	    int size = 1 + random.nextInt (maxArgs);
+	    int distance = 1 + random.nextInt (4 * size + 20);
+	    String[] qTerms = new String[size];
+	    QryIopWin win = new QryIopWin (distance);
+
+	    for (int i = 0; i < size; i++) {
+		qTerms[i] = terms.get (random.nextInt (terms.size ()));
+		win.appendArg (new QryIopTerm (qTerms[i], "body"));
+	    }
+
+	    win.positionsNeeded = true;
+	    win.initialize (new RetrievalModelUnrankedBoolean ());
+
+	    InvList actual = win.invertedList;
+	    InvList expected = reference (qTerms, distance);
+	    String diff = compare (expected, actual);
+
+	    postings += expected.df;
+
+	    if (diff != null) {
+		failures++;
+		System.out.println ("FAIL:  " + win + ":  " + diff);
+	    }
+	}
+
+	System.out.println ("Checked " + queries + " queries, " + postings +
+			    " postings, " + failures + " failures");
+
+	if (failures > 0)
+	    System.exit (1);
+    }
+
+    /*
+     *  reference returns the #WINDOW/distance list of the terms, using
+     *  the original sweep:  at each step every argument's current
+     *  location is rescanned for the min and max.  A window that fits
+     *  matches at its min, and every argument advances; otherwise the
+     *  first argument with the min advances.
+     */
+    static InvList reference (String[] terms, int distance)
+	throws IOException {
+
+	int size = terms.length;
+	InvList[] lists = new InvList[size];
+	int[] next = new int[size];
+	InvList result = new InvList ("body", true);
+	int[] window = new int[16];
+
+	for (int i = 0; i < size; i++)
+	    lists[i] = new InvList (terms[i], "body", true);
+
+	while (true) {
+
+	    //  Find the next document that every list contains.
+
+	    if (next[0] >= lists[0].df)
+		return result;
+
+	    int docid = lists[0].getDocid (next[0]);
+	    boolean found = true;
+
+	    for (int i = 1; found && (i < size); i++) {
+		while ((next[i] < lists[i].df) &&
+		       (lists[i].getDocid (next[i]) < docid))
+		    next[i]++;
+
+		if (next[i] >= lists[i].df)
+		    return result;
+
+		if (lists[i].getDocid (next[i]) > docid) {
+		    docid = lists[i].getDocid (next[i]);
+		    found = false;
+		}
+	    }
+
+	    if (! found) {
+		while ((next[0] < lists[0].df) &&
+		       (lists[0].getDocid (next[0]) < docid))
+		    next[0]++;
+
+		continue;
+	    }
+
+	    //  Sweep the document's locations.
+
+	    int[] pointer = new int[size];
+	    int count = 0;
+
+	    while (true) {
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		int minIndex = 0;
+		boolean done = false;
+
+		for (int i = 0; i < size; i++) {
+		    if (pointer[i] == lists[i].getTf (next[i])) {
+			done = true;
+			break;
+		    }
+
+		    int loc = lists[i].getPositions (next[i])
+			[lists[i].getPositionsOffset (next[i]) + pointer[i]];
+
+		    if (loc > max)
+			max = loc;
+
+		    if (loc < min) {
+			min = loc;
+			minIndex = i;
+		    }
+		}
+
+		if (done)
+		    break;
+
+		if (max - min + 1 <= distance) {
+		    if (count == window.length)
+			window = Arrays.copyOf (window, 2 * count);
+
+		    window[count++] = min;
+
+		    for (int i = 0; i < size; i++)
+			pointer[i]++;
+		} else {
+		    pointer[minIndex]++;
+		}
+	    }
+
+	    if (count > 0)
+		result.appendPosting (docid, window, count);
+
+	    next[0]++;
+	}
+    }
+
+    /*
+     *  compare returns a description of the first difference between
+     *  two lists, or null if they are the same.
+     */
+    static String compare (InvList expected, InvList actual) {
+
+	if (expected.df != actual.df)
+	    return "df " + actual.df + ", expected " + expected.df;
+
+	for (int n = 0; n < expected.df; n++) {
+	    int docid = expected.getDocid (n);
+
+	    if (actual.getDocid (n) != docid)
+		return "posting " + n + " docid " + actual.getDocid (n) +
+		    ", expected " + docid;
+
+	    if (actual.getTf (n) != expected.getTf (n))
+		return "docid " + docid + " tf " + actual.getTf (n) +
+		    ", expected " + expected.getTf (n);
+
+	    int[] e = expected.getPositions (n);
+	    int[] a = actual.getPositions (n);
+	    int eOffset = expected.getPositionsOffset (n);
+	    int aOffset = actual.getPositionsOffset (n);
+
+	    for (int j = 0; j < expected.getTf (n); j++) {
+		if (a[aOffset + j] != e[eOffset + j])
+		    return "docid " + docid + " location " + j + " is " +
+			a[aOffset + j] + ", expected " + e[eOffset + j];
+	    }
+	}
+
+	return null;
+    }
+}
@@ -12,19 +12,127 @@ import org.apache.lucene.index.MultiFields;
 
 /**
  * DocLengthStore is used to access the document lengths of indexed docs.
+ * <p>
+ * Lengths may be loaded into a dense int[] per field when the store
+ * is created, so that a lookup is an array access instead of a
+ * MultiDocValues indirection.  Scorers that look up many lengths in
+ * one field should get the field's {@link FieldLengths} handle once,
+ * rather than look the field up by name for each document.
+ * </p>
  */
 public class DocLengthStore  {
 
   private IndexReader reader;
   private  Map<String, NumericDocValues> values = new HashMap<String, NumericDocValues>();
+  private Map<String, FieldLengths> handles = new HashMap<String, FieldLengths>();
+
+  /**
+   * The lengths of one field.  Lengths are read from the dense array
+   * if the field was loaded, otherwise from the index.
+   */
+  public static final class FieldLengths {
+
+    private final NumericDocValues values;
+    private final int[] lengths;
+    private final long loadTime;
+
+    private FieldLengths(NumericDocValues values, int[] lengths, long loadTime) {
+      this.values = values;
+      this.lengths = lengths;
+      this.loadTime = loadTime;
+    }
+
+    /**
+     * Returns the length of the field in the specified document.
+     *
+     * @param docid The internal docid in the lucene index.
+     */
+    public int get(int docid) {
+      if (this.lengths != null) {
+        return this.lengths[docid];
+      }
+
+      return (int) this.values.get(docid);
+    }
+
+    /**
+     * Copies the lengths of the field in several documents into an
+     * array.
+     *
+     * @param docids The internal docids in the lucene index.
+     * @param count The number of docids.
+     * @param lengths The array to copy the lengths into.
+     */
+    public void get(int[] docids, int count, int[] lengths) {
+      if (this.lengths != null) {
+        for (int i = 0; i < count; i++) {
+          lengths[i] = this.lengths[docids[i]];
+        }
+      } else {
+        for (int i = 0; i < count; i++) {
+          lengths[i] = (int) this.values.get(docids[i]);
+        }
+      }
+    }
+
+    /**
+     * Returns true if the lengths were loaded into an array.
+     */
+    public boolean isDense() {
+      return this.lengths != null;
+    }
+
+    /**
+     * Returns the approximate heap used by the loaded lengths, in bytes.
+     */
+    public long getSizeInBytes() {
+      return (this.lengths == null) ? 0 : 4L * this.lengths.length;
+    }
+
+    /**
+     * Returns the time spent loading the lengths, in milliseconds.
+     */
+    public long getLoadTime() {
+      return this.loadTime;
+    }
+  }
 
   /**
    * @param reader IndexReader object created in {@link Idx}.
    */
   public DocLengthStore(IndexReader reader) throws IOException {
+    this(reader, false);
+  }
+
+  /**
+   * @param reader IndexReader object created in {@link Idx}.
+   * @param dense True to load every field's lengths into an int[].
+   */
+  public DocLengthStore(IndexReader reader, boolean dense) throws IOException {
     this.reader = reader;
     for (String field : MultiFields.getIndexedFields(reader)) {
-      this.values.put(field, MultiDocValues.getNormValues(reader, field));      
+      NumericDocValues fieldValues = MultiDocValues.getNormValues(reader, field);
+      this.values.put(field, fieldValues);
+
+      //  Fields without norms (e.g., externalId) have no lengths.
+
+      if (fieldValues == null) {
+        continue;
+      }
+
+      int[] lengths = null;
+      long start = System.currentTimeMillis();
+
+      if (dense) {
+        lengths = new int[reader.maxDoc()];
+
+        for (int docid = 0; docid < lengths.length; docid++) {
+          lengths[docid] = (int) fieldValues.get(docid);
+        }
+      }
+
+      this.handles.put(field, new FieldLengths(fieldValues, lengths,
+                                               System.currentTimeMillis() - start));
     }
   }
 
@@ -36,6 +144,48 @@ public class DocLengthStore  {
    * @param docid The internal docid in the lucene index.
    */
   public long getDocLength(String fieldname, int docid) throws IOException {
+    FieldLengths handle = this.handles.get(fieldname);
+
+    if (handle != null) {
+      return handle.get(docid);
+    }
+
     return values.get(fieldname).get(docid);
   }
+
+  /**
+   * Returns the lengths of the specified field.
+   *
+   * @param fieldname Name of field to access lengths.
+   * @throws IllegalArgumentException The field has no lengths.
+   */
+  public FieldLengths getFieldLengths(String fieldname) {
+    FieldLengths handle = this.handles.get(fieldname);
+
+    if (handle == null) {
+      throw new IllegalArgumentException("The " + fieldname +
+                                         " field has no document lengths.");
+    }
+
+    return handle;
+  }
+
+  /**
+   * Returns a description of the load time and memory of each field
+   * whose lengths were loaded into an array.
+   */
+  public String toString() {
+    StringBuilder s = new StringBuilder("Document lengths:");
+
+    for (Map.Entry<String, FieldLengths> e : this.handles.entrySet()) {
+      FieldLengths handle = e.getValue();
+
+      if (handle.isDense()) {
+        s.append("\n  " + e.getKey() + ":  " + (handle.getSizeInBytes() / 1024) +
+                 " KB, " + handle.getLoadTime() + " ms");
+      }
+    }
+
+    return s.toString();
+  }
 }
@@ -18,6 +18,55 @@ public class Idx {
 
   public static IndexReader INDEXREADER=null;
   private static DocLengthStore DOCLENGTHSTORE;
+  private static boolean DENSEDOCLENGTHS = false;
+  private static PostingCache POSTINGCACHE = null;
+  private static PostingCache PHRASECACHE = null;
+  private static boolean USEPHRASECACHE = true;
+  private static ImpactIndex IMPACTINDEX = null;
+
+  /**
+   *  Collection statistics for each indexed field.  They are read once
+   *  when the index is opened, because the index doesn't change.
+   */
+  private static Map<String, FieldStats> FIELDSTATS =
+    Collections.emptyMap ();
+  private static long NUMDOCS = 0;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  An immutable snapshot of the collection statistics of a field.
+   */
+  public static final class FieldStats {
+
+    /**
+     *  The number of documents that contain the field.
+     */
+    public final int docCount;
+
+    /**
+     *  The total number of term occurrences in all instances of the field.
+     */
+    public final long sumOfFieldLengths;
+
+    /**
+     *  The average length of the field in the documents that contain it.
+     */
+    public final double averageLength;
+
+    /**
+     *  The total number of documents in the corpus.
+     */
+    public final long numDocs;
+
+    private FieldStats (IndexReader reader, String fieldName)
+      throws IOException {
+      this.docCount = reader.getDocCount (fieldName);
+      this.sumOfFieldLengths = reader.getSumTotalTermFreq (fieldName);
+      this.averageLength = (double) this.sumOfFieldLengths / this.docCount;
+      this.numDocs = reader.numDocs ();
+    }
+  }
 
   //  --------------- Methods ---------------------------------------
 
@@ -33,6 +82,46 @@ public class Idx {
     return d.get (attributeName);
   }
 
+  /**
+   *  Get an inverted list from the memory-mapped posting cache, if
+   *  the index has one and the term is in it.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list, or null if it isn't cached.
+   */
+  public static InvList getCachedInvList (String termString, String fieldString) {
+    if (Idx.POSTINGCACHE == null)
+      return null;
+
+    return Idx.POSTINGCACHE.getInvList (termString, fieldString);
+  }
+
+  /**
+   *  Get the precomputed #NEAR/1 list of a pair of terms from the
+   *  memory-mapped phrase cache, if the index has one and the pair is
+   *  in it.
+   *  @param term1 The first processed term.
+   *  @param term2 The second processed term.
+   *  @param fieldString The field that the terms occur in.
+   *  @return The inverted list, or null if it isn't cached.
+   */
+  public static InvList getCachedPhraseInvList (String term1, String term2,
+                                                String fieldString) {
+    if (Idx.PHRASECACHE == null)
+      return null;
+
+    return Idx.PHRASECACHE.getInvList (PostingCache.phraseKey (term1, term2),
+                                       fieldString);
+  }
+
+  /**
+   *  Get the index's impact-ordered postings.
+   *  @return The impact index, or null if the index doesn't have one.
+   */
+  public static ImpactIndex getImpactIndex () {
+    return Idx.IMPACTINDEX;
+  }
+
   /**
    *  Get the number of documents that contain the specified field.
    *  @param fieldName the field name
@@ -40,7 +129,38 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static int getDocCount (String fieldName) throws IOException {
-    return Idx.INDEXREADER.getDocCount (fieldName);
+    return Idx.getFieldStats (fieldName).docCount;
+  }
+
+  /**
+   *  Get the document frequency of a term from the index statistics,
+   *  without reading its postings.  It includes documents that were
+   *  deleted but not yet merged away.
+   *  @param termString the term
+   *  @param fieldName the field name
+   *  @return the number of documents that contain the term
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static int getDf (String termString, String fieldName)
+    throws IOException {
+    return Idx.INDEXREADER.docFreq (new Term (fieldName, termString));
+  }
+
+  /**
+   *  Get the collection statistics of the specified field.  Fields
+   *  that weren't indexed when the index was opened are read from
+   *  the index.
+   *  @param fieldName the field name
+   *  @return the statistics of the field
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static FieldStats getFieldStats (String fieldName) throws IOException {
+    FieldStats stats = Idx.FIELDSTATS.get (fieldName);
+
+    if (stats == null)
+      stats = new FieldStats (Idx.INDEXREADER, fieldName);
+
+    return stats;
   }
 
   /**
@@ -66,6 +186,25 @@ public class Idx {
     return (int) Idx.DOCLENGTHSTORE.getDocLength (fieldName, docid);
   }
 
+  /**
+   *  Get the lengths of the specified field.  Scorers that look up the
+   *  lengths of many documents should use this handle instead of
+   *  getFieldLength.
+   *  @param fieldName Name of field to access lengths.
+   *  @return the lengths of the field.
+   */
+  public static DocLengthStore.FieldLengths getFieldLengths (String fieldName) {
+    return Idx.DOCLENGTHSTORE.getFieldLengths (fieldName);
+  }
+
+  /**
+   *  Get the document length store.
+   *  @return the document length store.
+   */
+  public static DocLengthStore getDocLengthStore () {
+    return Idx.DOCLENGTHSTORE;
+  }
+
   /**
    * Get the internal document id for a document specified by its
    * external id, e.g. clueweb09-enwp00-88-09710. If no such document
@@ -97,7 +236,7 @@ public class Idx {
    *  @throws IOException Error accessing the Lucene index.
    */
   public static long getNumDocs () throws IOException {
-    return Idx.INDEXREADER.numDocs();
+    return Idx.NUMDOCS;
   }
 
   /**
@@ -110,11 +249,34 @@ public class Idx {
    */
   public static long getSumOfFieldLengths (String fieldName)
     throws IOException {
-    return Idx.INDEXREADER.getSumTotalTermFreq (fieldName);
+    return Idx.getFieldStats (fieldName).sumOfFieldLengths;
+  }
+
+  /**
+   *  Choose whether the index's phrase cache is used, if it has one.
+   *  Tools that mine #NEAR/1 operators turn it off, so that
+   *  QryEval.optimizeQuery doesn't rewrite the operators.  It must be
+   *  called before initialize.
+   *  @param use True to use the phrase cache.
+   */
+  public static void setUsePhraseCache (boolean use) {
+    Idx.USEPHRASECACHE = use;
+  }
+
+  /**
+   *  Choose whether the document lengths of each field are loaded into
+   *  an array when the index is opened.  It must be called before
+   *  initialize.
+   *  @param dense True to load document lengths into arrays.
+   */
+  public static void setDenseDocLengths (boolean dense) {
+    Idx.DENSEDOCLENGTHS = dense;
   }
 
   /**
-   *  Open a Lucene index and the associated DocLengthStore.
+   *  Open a Lucene index, the associated DocLengthStore, and the
+   *  posting cache, if there is one, and read the collection
+   *  statistics of each field.
    *  @param indexPath A directory that contains a Lucene index.
    *  @throws IllegalArgumentException Unable to open the index.
    *  @throws IOException Error accessing the index.
@@ -134,11 +296,50 @@ public class Idx {
     //  Lucene doesn't store field lengths the way that we want them,
     //  so we have our own document length store.
 
-    Idx.DOCLENGTHSTORE = new DocLengthStore (Idx.INDEXREADER);
+    Idx.DOCLENGTHSTORE =
+      new DocLengthStore (Idx.INDEXREADER, Idx.DENSEDOCLENGTHS);
   
     if (Idx.DOCLENGTHSTORE == null) {
       throw new IllegalArgumentException ("Unable to open the document length store.");
     }
+
+    //  Read the collection statistics once.
+
+    Map<String, FieldStats> stats = new HashMap<String, FieldStats> ();
+
+    for (String field : MultiFields.getIndexedFields (Idx.INDEXREADER)) {
+      stats.put (field, new FieldStats (Idx.INDEXREADER, field));
+    }
+
+    Idx.FIELDSTATS = Collections.unmodifiableMap (stats);
+    Idx.NUMDOCS = Idx.INDEXREADER.numDocs ();
+
+    //  BuildPostingCache may have written pre-decoded inverted lists
+    //  for frequent terms.  They are mapped, not read.
+
+    File cacheFile = new File (indexPath, PostingCache.FILE_NAME);
+
+    if (cacheFile.exists ()) {
+      Idx.POSTINGCACHE = new PostingCache (cacheFile);
+    }
+
+    //  BuildPhraseCache may have written #NEAR/1 lists for frequent
+    //  pairs of terms.
+
+    File phraseFile = new File (indexPath, PostingCache.PHRASE_FILE_NAME);
+
+    if (Idx.USEPHRASECACHE && phraseFile.exists ()) {
+      Idx.PHRASECACHE = new PostingCache (phraseFile);
+    }
+
+    //  BuildImpactIndex may have written impact-ordered postings for
+    //  score-at-a-time evaluation.
+
+    File impactFile = new File (indexPath, ImpactIndex.FILE_NAME);
+
+    if (impactFile.exists ()) {
+      Idx.IMPACTINDEX = new ImpactIndex (impactFile);
+    }
   }
 
 }
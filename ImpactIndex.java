@@ -0,0 +1,398 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ *  A read-only, memory-mapped file of impact-ordered postings for
+ *  BM25.  BuildImpactIndex writes the file for a k_1 and b.  The BM25
+ *  score of each posting (with query term frequency 1) is quantized
+ *  to a small integer impact, and each term's postings are grouped
+ *  into segments of equal impact, highest impact first.  Docids are
+ *  ascending within a segment.  The impacts of all terms share one
+ *  scale, so a document's impacts may be added across terms.
+ *  <p>
+ *  File format (all values are big-endian ints unless noted):
+ *  </p>
+ *  <pre>
+ *    header:     MAGIC, VERSION, bits, k_1 (double), b (double),
+ *                scale (double)
+ *    lists:      for each list:  segments, then for each segment:
+ *                impact, count; then the docids of each segment
+ *    directory:  count, then for each list:
+ *                field (UTF), term (UTF), df, start
+ *    trailer:    directory offset (long)
+ *  </pre>
+ *  <p>
+ *  start is the index (in ints, from the beginning of the file) of a
+ *  list's segment count.  An impact i stands for a score of about
+ *  i * scale.
+ *  </p>
+ */
+public class ImpactIndex {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The name of the impact index file in an index directory.
+   */
+  public static final String FILE_NAME = "impacts.index";
+
+  public static final int MAGIC = 0x51494931;	// "QII1"
+  public static final int VERSION = 1;
+
+  /**
+   *  The header's size in bytes.
+   */
+  private static final int HEADER_SIZE = 36;
+
+  private int bits;
+  private double k_1;
+  private double b;
+  private double scale;
+
+  /**
+   *  The mapped file.
+   */
+  private IntBuffer data;
+
+  /**
+   *  The directory:  (field, term) to the list's location in the file.
+   */
+  private Map<String, Entry> entries = new HashMap<String, Entry> ();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A directory entry.
+   */
+  private static class Entry {
+    private int df;
+    private int start;
+  }
+
+  /**
+   *  The impact-ordered postings of one term.  Segment s holds the
+   *  docids from getSegmentStart (s) up to getSegmentStart (s+1),
+   *  which all have impact getImpact (s).  Impacts decrease with s.
+   */
+  public static final class Postings {
+
+    private final IntBuffer data;
+    private final int start;
+    private final int segments;
+    private final int docids;
+    private final int df;
+
+    private Postings (IntBuffer data, int start, int df) {
+      this.data = data;
+      this.start = start;
+      this.segments = data.get (start);
+      this.docids = start + 1 + 2 * this.segments;
+      this.df = df;
+    }
+
+    /**
+     *  Get the number of postings.
+     *  @return The number of postings.
+     */
+    public int getDf () {
+      return this.df;
+    }
+
+    /**
+     *  Get the number of segments.
+     *  @return The number of segments.
+     */
+    public int getSegmentCount () {
+      return this.segments;
+    }
+
+    /**
+     *  Get the impact of the postings of a segment.
+     *  @param s The segment.
+     *  @return The impact.
+     */
+    public int getImpact (int s) {
+      return this.data.get (this.start + 1 + 2 * s);
+    }
+
+    /**
+     *  Get the number of postings in a segment.
+     *  @param s The segment.
+     *  @return The number of postings.
+     */
+    public int getSegmentLength (int s) {
+      return this.data.get (this.start + 2 + 2 * s);
+    }
+
+    /**
+     *  Get the n'th docid of the list, in segment order.
+     *  @param n The index of the posting.
+     *  @return The docid.
+     */
+    public int getDocid (int n) {
+      return this.data.get (this.docids + n);
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open an impact index file.
+   *  @param file The impact index file.
+   *  @throws IOException Error reading the file, or it isn't an impact index.
+   */
+  public ImpactIndex (File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      long length = raf.length ();
+
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException (file + " is too large to map.");
+      }
+
+      if ((length < HEADER_SIZE + 12) || (raf.readInt () != MAGIC) ||
+          (raf.readInt () != VERSION)) {
+        throw new IOException (file + " is not an impact index file.");
+      }
+
+      this.bits = raf.readInt ();
+      this.k_1 = raf.readDouble ();
+      this.b = raf.readDouble ();
+      this.scale = raf.readDouble ();
+
+      //  Read the directory.
+
+      raf.seek (length - 8);
+      raf.seek (raf.readLong ());
+
+      int count = raf.readInt ();
+
+      for (int i = 0; i < count; i++) {
+        String field = raf.readUTF ();
+        String term = raf.readUTF ();
+        Entry e = new Entry ();
+
+        e.df = raf.readInt ();
+        e.start = raf.readInt ();
+        this.entries.put (ImpactIndex.key (term, field), e);
+      }
+
+      //  Map the file.  The mapping remains valid after the file is closed.
+
+      MappedByteBuffer buffer =
+        raf.getChannel ().map (FileChannel.MapMode.READ_ONLY, 0, length);
+      this.data = buffer.asIntBuffer ();
+    } finally {
+      raf.close ();
+    }
+  }
+
+  /**
+   *  Get the impact-ordered postings of a term.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The postings, or null if the term isn't in the index.
+   */
+  public Postings getPostings (String termString, String fieldString) {
+
+    Entry e = this.entries.get (ImpactIndex.key (termString, fieldString));
+
+    if (e == null)
+      return null;
+
+    return new Postings (this.data, e.start, e.df);
+  }
+
+  /**
+   *  Make the directory key for a term in a field.
+   */
+  private static String key (String termString, String fieldString) {
+    return fieldString + '\t' + termString;
+  }
+
+  /**
+   *  Get the number of bits that impacts were quantized to.
+   *  @return The number of bits.
+   */
+  public int getBits () {
+    return this.bits;
+  }
+
+  /**
+   *  Get the BM25 k_1 that the impacts were computed with.
+   *  @return k_1.
+   */
+  public double getK_1 () {
+    return this.k_1;
+  }
+
+  /**
+   *  Get the BM25 b that the impacts were computed with.
+   *  @return b.
+   */
+  public double getB () {
+    return this.b;
+  }
+
+  /**
+   *  Get the score of an impact of 1.
+   *  @return The scale of the impacts.
+   */
+  public double getScale () {
+    return this.scale;
+  }
+
+  /**
+   *  Get the number of inverted lists in the index.
+   *  @return The number of inverted lists.
+   */
+  public int size () {
+    return this.entries.size ();
+  }
+
+  /**
+   *  Writes an impact index file one inverted list at a time, so that
+   *  only one list needs to be in memory.
+   */
+  public static class Writer {
+
+    private DataOutputStream out;
+    private long position;
+    private int maxImpact;
+    private double scale;
+    private List<String> fields = new ArrayList<String> ();
+    private List<String> terms = new ArrayList<String> ();
+    private List<int[]> stats = new ArrayList<int[]> ();
+
+    /**
+     *  Create an impact index file.
+     *  @param file The file to write.
+     *  @param bits The number of bits to quantize impacts to.
+     *  @param k_1 The BM25 k_1 of the scores.
+     *  @param b The BM25 b of the scores.
+     *  @param maxScore The largest score that will be added.
+     *  @throws IllegalArgumentException bits isn't from 1 to 16.
+     *  @throws IOException Error creating the file.
+     */
+    public Writer (File file, int bits, double k_1, double b, double maxScore)
+      throws IOException {
+
+      if ((bits < 1) || (bits > 16)) {
+        throw new IllegalArgumentException ("Impacts must have 1 to 16 bits.");
+      }
+
+      this.maxImpact = (1 << bits) - 1;
+      this.scale = (maxScore > 0) ? maxScore / this.maxImpact : 1.0;
+      this.out =
+        new DataOutputStream (new BufferedOutputStream (new FileOutputStream (file)));
+      this.out.writeInt (MAGIC);
+      this.out.writeInt (VERSION);
+      this.out.writeInt (bits);
+      this.out.writeDouble (k_1);
+      this.out.writeDouble (b);
+      this.out.writeDouble (this.scale);
+      this.position = HEADER_SIZE;
+    }
+
+    /**
+     *  Quantize a score to an impact.
+     *  @param score A score from 0 to the maxScore of the file.
+     *  @return The impact.
+     */
+    public int quantize (double score) {
+      return (int) Math.min (this.maxImpact, Math.max (0, Math.round (score / this.scale)));
+    }
+
+    /**
+     *  Append a term's postings to the file.
+     *  @param fieldString The field of the list.
+     *  @param termString The term of the list.
+     *  @param docids The docids of the postings, in increasing order.
+     *  @param scores The scores of the postings.
+     *  @throws IOException Error writing the file.
+     */
+    public void add (String fieldString, String termString, int[] docids,
+                     double[] scores) throws IOException {
+
+      int df = docids.length;
+
+      //  Count the postings of each impact.
+
+      int[] impacts = new int[df];
+      int[] counts = new int[this.maxImpact + 1];
+      int segments = 0;
+
+      for (int n = 0; n < df; n++) {
+        impacts[n] = this.quantize (scores[n]);
+
+        if (counts[impacts[n]]++ == 0)
+          segments++;
+      }
+
+      if (this.position / 4 + 1L + 2L * segments + df > Integer.MAX_VALUE) {
+        throw new IOException ("The impact index would be too large to map.");
+      }
+
+      //  Write the segments, highest impact first.  Postings are
+      //  placed by counting sort, which keeps docids ascending within
+      //  each segment.
+
+      int[] offsets = new int[this.maxImpact + 1];
+      int offset = 0;
+
+      this.out.writeInt (segments);
+
+      for (int i = this.maxImpact; i >= 0; i--) {
+        if (counts[i] == 0)
+          continue;
+
+        this.out.writeInt (i);
+        this.out.writeInt (counts[i]);
+        offsets[i] = offset;
+        offset += counts[i];
+      }
+
+      int[] ordered = new int[df];
+
+      for (int n = 0; n < df; n++)
+        ordered[offsets[impacts[n]]++] = docids[n];
+
+      for (int n = 0; n < df; n++)
+        this.out.writeInt (ordered[n]);
+
+      this.fields.add (fieldString);
+      this.terms.add (termString);
+      this.stats.add (new int[] { df, (int) (this.position / 4) });
+      this.position += 4L * (1L + 2L * segments + df);
+    }
+
+    /**
+     *  Write the directory and close the file.
+     *  @throws IOException Error writing the file.
+     */
+    public void close () throws IOException {
+
+      this.out.writeInt (this.fields.size ());
+
+      for (int i = 0; i < this.fields.size (); i++) {
+        int[] s = this.stats.get (i);
+
+        this.out.writeUTF (this.fields.get (i));
+        this.out.writeUTF (this.terms.get (i));
+        this.out.writeInt (s[0]);
+        this.out.writeInt (s[1]);
+      }
+
+      this.out.writeLong (this.position);
+      this.out.close ();
+    }
+  }
+}
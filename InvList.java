@@ -37,50 +37,65 @@ public class InvList {
   public String field;
 
   /**
-   *  Postings that contain information about the occurrence of the
-   *  term in individual documents.
+   *  Postings are stored in packed, parallel arrays rather than as
+   *  one object per document.  The n'th posting is docids[n], tfs[n],
+   *  and the tfs[n] locations that start at positions[offsets[n]].
+   *  Locations for all postings share one flat pool.  Arrays grow as
+   *  postings are appended, so their length may exceed df.
    */
-  public Vector<DocPosting> postings = new Vector<DocPosting>();
+  private int[] docids;
+  private int[] tfs;
+  private int[] offsets;
+  private int[] positions;
 
-  //  --------------- Nested classes --------------------------------
+  /**
+   *  Whether the list stores locations.  Lists for operators whose
+   *  locations are never read store only docids and tfs.
+   */
+  private boolean positionsStored = true;
 
   /**
-   *  Utility class that makes it easier to construct postings.
+   *  A skip index over the postings.  Postings are grouped into
+   *  blocks of SKIP_BLOCK_SIZE, and blockLastDocids[b] is the last
+   *  document id in block b, so searches can pass whole blocks
+   *  without touching their postings.  Block b starts at posting
+   *  b * SKIP_BLOCK_SIZE; its first location is at the offset of that
+   *  posting.
    */
-  public class DocPosting {
+  private int[] blockLastDocids;
 
-    /**
-     *  The internal id of a document that contains the term in
-     *  the specified field.
-     */
-    public int docid = 0;
+  /**
+   *  The number of postings covered by each skip index entry.  It is
+   *  a power of 2 so that block arithmetic is done with shifts.
+   */
+  public static final int SKIP_BLOCK_SHIFT = 7;
+  public static final int SKIP_BLOCK_SIZE = 1 << SKIP_BLOCK_SHIFT;
 
-    /**
-     *  Term frequency:  The number of times the term occurs in
-     *  the specified field of the document.
-     */
-    public int tf = 0;
+  /**
+   *  The number of entries of the positions pool that are in use.
+   */
+  private int positionsLength = 0;
 
-    /**
-     *  The locations where the term occurs in the specified field
-     *  of the document.
-     */
-    public Vector<Integer> positions = new Vector<Integer>();
+  /**
+   *  The largest tf in the list, once it is requested, or -1.
+   */
+  private int maxTf = -1;
 
-    public DocPosting(int d, int... locations) {
-      this.docid = d;
-      this.tf = locations.length;
-      for (int i = 0; i < locations.length; i++)
-        this.positions.add(locations[i]);
-    }
+  /**
+   *  Impact metadata for the skip index blocks, once it is requested:
+   *  the largest tf in each block, and the shortest field length of a
+   *  document in each block.  Together they bound the score of any
+   *  posting in the block for scores that grow with tf and shrink
+   *  with document length (e.g., BM25).
+   */
+  private int[] blockMaxTfs = null;
+  private int[] blockMinLengths = null;
 
-    public DocPosting(int d, List<Integer> locations) {
-      this.docid = d;
-      this.tf = locations.size();
-      for (int i = 0; i < locations.size(); i++)
-        this.positions.add(locations.get(i));
-    }
-  }
+  /**
+   *  Initial capacity of the arrays for lists that are built by
+   *  appending postings.
+   */
+  private static final int INITIAL_CAPACITY = 16;
 
   //  --------------- Methods ---------------------------------------
 
@@ -88,6 +103,7 @@ public class InvList {
    *  Constructor.  An empty inverted list. Useful for some query operators.
    */
   public InvList() {
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
   }
 
   /**
@@ -96,6 +112,31 @@ public class InvList {
    */
   public InvList(String fieldString) {
     this.field = new String (fieldString);
+    this.allocate (INITIAL_CAPACITY, INITIAL_CAPACITY);
+  }
+
+  /**
+   *  Get an empty inverted list that may store only docids and tfs.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positionsStored False if the list doesn't store locations.
+   */
+  public InvList(String fieldString, boolean positionsStored) {
+    this.field = new String (fieldString);
+    this.positionsStored = positionsStored;
+    this.allocate (INITIAL_CAPACITY, positionsStored ? INITIAL_CAPACITY : 0);
+  }
+
+  /**
+   *  Get an empty inverted list that has room for the specified
+   *  number of postings and locations.  Subclasses that store
+   *  postings in another form allocate nothing here.
+   *  @param fieldString The field that the term occurs in.
+   *  @param postingCapacity The number of postings to allocate space for.
+   *  @param positionCapacity The number of locations to allocate space for.
+   */
+  protected InvList(String fieldString, int postingCapacity, int positionCapacity) {
+    this.field = new String (fieldString);
+    this.allocate (postingCapacity, positionCapacity);
   }
 
   /**
@@ -105,18 +146,49 @@ public class InvList {
    *  @throws IOException Error accessing the Lucene index.
    */
   public InvList(String termString, String fieldString) throws IOException {
+    this (termString, fieldString, true);
+  }
+
+  /**
+   *  Get an inverted list from the index, optionally without
+   *  locations.  Decoding locations is the largest part of reading a
+   *  long list, so lists whose locations won't be read skip them.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positionsStored False if the list should not store locations.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public InvList(String termString, String fieldString,
+                 boolean positionsStored) throws IOException {
 
     //  Store the field name.  This is used by other query operators.
 
     this.field = new String (fieldString);
+    this.positionsStored = positionsStored;
 
     //  Prepare to access the index.
 
     BytesRef termBytes = new BytesRef(termString);
     Term term = new Term(fieldString, termBytes);
 
-    if (Idx.INDEXREADER.docFreq(term) < 1)
+    int docFreq = Idx.INDEXREADER.docFreq(term);
+
+    if (docFreq < 1) {
+      this.allocate (0, 0);
       return;
+    }
+
+    //  The index knows how large the list is, so the arrays can be
+    //  sized exactly.  Deleted documents may make them a little large.
+
+    if (! positionsStored) {
+      this.allocate (docFreq, 0);
+      this.readDocsAndFreqs (termBytes);
+      return;
+    }
+
+    this.allocate (docFreq,
+                   (int) Math.max (0, Idx.INDEXREADER.totalTermFreq(term)));
 
     //  Lookup the inverted list.
 
@@ -133,48 +205,419 @@ public class InvList {
     while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
 
       int tf = iList.freq();
-      int[] positions = new int[tf];
+
+      this.ensureCapacity (tf);
+      this.docids[this.df] = iList.docID();
+      this.blockLastDocids[this.df >>> SKIP_BLOCK_SHIFT] = iList.docID();
+      this.tfs[this.df] = tf;
+      this.offsets[this.df] = this.positionsLength;
 
       for (int j = 0; j < tf; j++)
-        positions[j] = iList.nextPosition();
+        this.positions[this.positionsLength++] = iList.nextPosition();
 
-      this.postings.add(new DocPosting(iList.docID(), positions));
       this.df++;
       this.ctf += tf;
     }
   }
 
+  /**
+   *  Allocate the posting and position arrays.
+   *  @param postingCapacity The number of postings to allocate space for.
+   *  @param positionCapacity The number of locations to allocate space for.
+   */
+  private void allocate (int postingCapacity, int positionCapacity) {
+    this.docids = new int[postingCapacity];
+    this.tfs = new int[postingCapacity];
+    this.offsets = new int[postingCapacity];
+    this.positions = new int[positionCapacity];
+    this.blockLastDocids = new int[InvList.getBlockCount (postingCapacity)];
+  }
+
+  /**
+   *  Copy docids and tfs from the index without reading locations.
+   *  @param termBytes The term.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readDocsAndFreqs (BytesRef termBytes) throws IOException {
+
+    DocsEnum iList =
+      MultiFields.getTermDocsEnum(Idx.INDEXREADER,
+				  MultiFields.getLiveDocs(Idx.INDEXREADER),
+				  this.field, termBytes, DocsEnum.FLAG_FREQS);
+
+    while (iList.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      this.appendPosting (iList.docID(), iList.freq());
+    }
+  }
+
+  /**
+   *  Append a posting that has no locations to a list that doesn't
+   *  store locations.  Posting must be appended in docid order,
+   *  otherwise this method fails.
+   *  @param docid The internal document id of the posting.
+   *  @param tf The term frequency in the document.
+   *  @return true if the posting was added successfully, otherwise false.
+   */
+  public boolean appendPosting (int docid, int tf) {
+
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
+      return false;
+
+    this.ensureCapacity (0);
+    this.docids[this.df] = docid;
+    this.blockLastDocids[this.df >>> SKIP_BLOCK_SHIFT] = docid;
+    this.tfs[this.df] = tf;
+    this.offsets[this.df] = this.positionsLength;
+
+    this.df ++;
+    this.ctf += tf;
+    return true;
+  }
+
   /**
    *  Append a posting to the posting list.  Posting must be appended
-   *  in docid order, otherwise this method fails.
+   *  in docid order, otherwise this method fails.  If the list doesn't
+   *  store locations, only the count is used.
    *  @param docid The internal document id of the posting.
-   *  @param positions A list of positions where the term occurs.
+   *  @param locations An array that contains the locations where the
+   *    term occurs, in ascending order.
+   *  @param count The number of locations to copy from the array.
    *  @return true if the posting was added successfully, otherwise false.
    */
-  public boolean appendPosting (int docid, List<Integer> positions) {
+  public boolean appendPosting (int docid, int[] locations, int count) {
+
+    if (! this.positionsStored)
+      return this.appendPosting (docid, count);
     
     //  A posting can only be appended if its docid is greater than
     //  the last docid.
 
-    if ((this.df > 1) &&
-	(this.postings.get(this.df-1).docid >= docid))
+    if ((this.df > 0) &&
+	(this.docids[this.df-1] >= docid))
       return false;
 
-    DocPosting p = new DocPosting (docid, positions);
+    this.ensureCapacity (count);
+    this.docids[this.df] = docid;
+    this.blockLastDocids[this.df >>> SKIP_BLOCK_SHIFT] = docid;
+    this.tfs[this.df] = count;
+    this.offsets[this.df] = this.positionsLength;
+    System.arraycopy (locations, 0, this.positions, this.positionsLength, count);
+    this.positionsLength += count;
 
-    this.postings.add (p);
     this.df ++;
-    this.ctf += p.tf;
+    this.ctf += count;
     return true;
   }
 
+  /**
+   *  Make sure that there is room for one more posting that has the
+   *  specified number of locations.
+   *  @param tf The number of locations in the next posting.
+   */
+  private void ensureCapacity (int tf) {
+
+    if (this.df == this.docids.length) {
+      int capacity = Math.max (INITIAL_CAPACITY, this.docids.length * 2);
+      this.docids = Arrays.copyOf (this.docids, capacity);
+      this.tfs = Arrays.copyOf (this.tfs, capacity);
+      this.offsets = Arrays.copyOf (this.offsets, capacity);
+      this.blockLastDocids =
+        Arrays.copyOf (this.blockLastDocids, InvList.getBlockCount (capacity));
+    }
+
+    if (this.positionsLength + tf > this.positions.length) {
+      int capacity = Math.max (this.positionsLength + tf,
+                               this.positions.length * 2);
+      this.positions = Arrays.copyOf (this.positions, capacity);
+    }
+  }
+
+  /**
+   *  Find the first posting at or after index n whose document id is
+   *  at least docid.  If docid is not in n's block, the skip index is
+   *  searched for the first block that could contain it, galloping
+   *  forward in steps that double, so passing d postings costs
+   *  O(log (d / SKIP_BLOCK_SIZE)) and touches no postings in the
+   *  blocks that are skipped.  The search then gallops within the
+   *  block.
+   *  @param n The index at which to start searching.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid(int n, int docid) {
+
+    if ((n >= this.df) || (this.docids[n] >= docid))
+      return n;
+
+    int block = n >>> SKIP_BLOCK_SHIFT;
+
+    if (this.blockLastDocids[block] < docid) {
+      block = InvList.gallop (this.blockLastDocids,
+                              InvList.getBlockCount (this.df),
+                              block + 1, docid);
+      n = block << SKIP_BLOCK_SHIFT;
+
+      if ((n >= this.df) || (this.docids[n] >= docid))
+        return Math.min (n, this.df);
+    }
+
+    //  The last docid in the block is >= docid, so the search can
+    //  stop at the end of the block.
+
+    return InvList.gallop (this.docids,
+                           Math.min ((block + 1) << SKIP_BLOCK_SHIFT, this.df),
+                           n, docid);
+  }
+
+  /**
+   *  Find the first entry at or after index from of a sorted array
+   *  whose value is at least key.  The search gallops forward in
+   *  steps that double until it passes key, then binary searches
+   *  the last step.
+   *  @param values An array sorted in ascending order.
+   *  @param length The number of entries of the array that are in use.
+   *  @param from The index at which to start searching.
+   *  @param key The value to search for.
+   *  @return The index of the entry, or length if there is none.
+   */
+  protected static int gallop (int[] values, int length, int from, int key) {
+
+    if ((from >= length) || (values[from] >= key))
+      return from;
+
+    //  Invariant:  values[lo] < key, and hi is length or values[hi] >= key.
+
+    int lo = from;
+    int hi = from + 1;
+    int step = 1;
+
+    while ((hi < length) && (values[hi] < key)) {
+      lo = hi;
+      step <<= 1;
+      hi = lo + step;
+    }
+
+    if (hi > length)
+      hi = length;
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (values[mid] < key)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Get the number of skip index blocks needed for a number of postings.
+   *  @param postings A number of postings.
+   *  @return The number of blocks.
+   */
+  public static int getBlockCount (int postings) {
+    return (postings + SKIP_BLOCK_SIZE - 1) >>> SKIP_BLOCK_SHIFT;
+  }
+
+  /**
+   *  Get the last document id in a skip index block.
+   *  @param block The index of the block.
+   *  @return The internal document id.
+   */
+  public int getBlockLastDocid(int block) {
+    return this.blockLastDocids[block];
+  }
+
+  /**
+   *  Copy the docids and tfs of a skip index block into arrays, so
+   *  that a block can be scored in one loop.
+   *  @param block The index of the block.
+   *  @param docids An array of at least SKIP_BLOCK_SIZE docids.
+   *  @param tfs An array of at least SKIP_BLOCK_SIZE tfs.
+   *  @return The number of postings in the block.
+   */
+  public int getBlockPostings(int block, int[] docids, int[] tfs) {
+    int start = block << SKIP_BLOCK_SHIFT;
+    int count = Math.min (SKIP_BLOCK_SIZE, this.df - start);
+
+    System.arraycopy (this.docids, start, docids, 0, count);
+    System.arraycopy (this.tfs, start, tfs, 0, count);
+    return count;
+  }
+
+  /**
+   *  Find the skip index block that holds the first posting at or
+   *  after index n whose document id is at least docid.  Only the
+   *  skip index is searched, so no postings are read or decoded.
+   *  @param n The index at which to start searching.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the block, or -1 if there is no such posting.
+   */
+  public int findBlock(int n, int docid) {
+
+    if (n >= this.df)
+      return -1;
+
+    int block = n >>> SKIP_BLOCK_SHIFT;
+    int blocks = InvList.getBlockCount (this.df);
+
+    if (this.getBlockLastDocid (block) >= docid)
+      return block;
+
+    //  Gallop, then binary search.  Invariant:  the last docid of
+    //  block lo is < docid, and hi is blocks or block hi's is >= docid.
+
+    int lo = block;
+    int hi = block + 1;
+    int step = 1;
+
+    while ((hi < blocks) && (this.getBlockLastDocid (hi) < docid)) {
+      lo = hi;
+      step <<= 1;
+      hi = lo + step;
+    }
+
+    if (hi > blocks)
+      hi = blocks;
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.getBlockLastDocid (mid) < docid)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return (hi < blocks) ? hi : -1;
+  }
+
+  /**
+   *  Get the largest term frequency in a skip index block.
+   *  @param block The index of the block.
+   *  @return The largest tf in the block.
+   */
+  public int getBlockMaxTf(int block) {
+    if (this.blockMaxTfs == null)
+      this.computeBlockImpacts ();
+
+    return this.blockMaxTfs[block];
+  }
+
+  /**
+   *  Get the shortest field length of a document in a skip index block.
+   *  @param block The index of the block.
+   *  @return The shortest document length in the block.
+   */
+  public int getBlockMinLength(int block) {
+    if (this.blockMinLengths == null)
+      this.computeBlockImpacts ();
+
+    return this.blockMinLengths[block];
+  }
+
+  /**
+   *  Find the impact metadata of each skip index block.  It is done
+   *  once, the first time that it is requested, so the list must be
+   *  complete.  Document lengths are read from the DocLengthStore.
+   */
+  private void computeBlockImpacts() {
+
+    DocLengthStore.FieldLengths lengths = Idx.getFieldLengths (this.field);
+    int blocks = InvList.getBlockCount (this.df);
+    int[] maxTfs = new int[blocks];
+    int[] minLengths = new int[blocks];
+
+    for (int b = 0; b < blocks; b++) {
+      int end = Math.min ((b + 1) << SKIP_BLOCK_SHIFT, this.df);
+      int maxTf = 0;
+      int minLength = Integer.MAX_VALUE;
+
+      for (int n = b << SKIP_BLOCK_SHIFT; n < end; n++) {
+        maxTf = Math.max (maxTf, this.getTf (n));
+        minLength = Math.min (minLength, lengths.get (this.getDocid (n)));
+      }
+
+      maxTfs[b] = maxTf;
+      minLengths[b] = minLength;
+    }
+
+    this.blockMaxTfs = maxTfs;
+    this.blockMinLengths = minLengths;
+  }
+
   /**
    *  Get the n'th document id from the inverted list.
-   *  @param docid The index of the requested document.
+   *  @param n The index of the requested document.
    *  @return The internal document id.
    */
-  public int getDocid(int docid) {
-    return this.postings.get(docid).docid;
+  public int getDocid(int n) {
+    return this.docids[n];
+  }
+
+  /**
+   *  Get the location pool.  The locations of the n'th posting are
+   *  the getTf(n) entries that start at getPositionsOffset(n).  The
+   *  pool must not be modified.
+   *  @param n The index of the requested document.
+   *  @return The array that stores the document's locations.
+   */
+  public int[] getPositions(int n) {
+    if (! this.positionsStored) {
+      throw new IllegalStateException ("The inverted list doesn't store locations.");
+    }
+
+    return this.positions;
+  }
+
+  /**
+   *  Get the index in the location pool of the first location of the
+   *  n'th posting.
+   *  @param n The index of the requested document.
+   *  @return The offset of the document's first location.
+   */
+  public int getPositionsOffset(int n) {
+    return this.offsets[n];
+  }
+
+  /**
+   *  Returns true if the list stores the locations of its postings.
+   *  @return True if the list stores locations.
+   */
+  public boolean hasPositions() {
+    return this.positionsStored;
+  }
+
+  /**
+   *  Get the largest term frequency in the list.  It is found the
+   *  first time that it is requested, so the list must be complete.
+   *  @return The largest tf, or 0 if the list is empty.
+   */
+  public int getMaxTf() {
+    if (this.maxTf < 0) {
+      int max = 0;
+
+      for (int n = 0; n < this.df; n++)
+        max = Math.max (max, this.getTf (n));
+
+      this.maxTf = max;
+    }
+
+    return this.maxTf;
+  }
+
+  /**
+   *  Estimate the number of bytes of heap that the list occupies.
+   *  Arrays are counted at their allocated length, not df.
+   *  @return The approximate size of the list in bytes.
+   */
+  public long getSizeInBytes() {
+    return 64 + 4L * ((long) this.docids.length + this.tfs.length +
+                      this.offsets.length + this.positions.length +
+                      this.blockLastDocids.length);
   }
 
   /**
@@ -183,7 +626,7 @@ public class InvList {
    *  @return The document's term frequency.
    */
   public int getTf(int n) {
-    return this.postings.get(n).tf;
+    return this.tfs[n];
   }
 
   /**
@@ -194,11 +637,21 @@ public class InvList {
     System.out.println("df:  " + this.df + ", ctf: " + this.ctf);
 
     for (int i = 0; i < this.df; i++) {
-      System.out.print("docid:  " + this.postings.elementAt(i).docid + ", tf: "
-          + this.postings.elementAt(i).tf + ", locs: ");
+      System.out.print("docid:  " + this.getDocid(i) + ", tf: "
+          + this.getTf(i));
+
+      if (! this.hasPositions()) {
+        System.out.println();
+        continue;
+      }
+
+      System.out.print(", locs: ");
+
+      int[] locations = this.getPositions(i);
+      int offset = this.getPositionsOffset(i);
 
-      for (int j = 0; j < this.postings.elementAt(i).tf; j++) {
-        System.out.print(this.postings.elementAt(i).positions.elementAt(j) + " ");
+      for (int j = 0; j < this.getTf(i); j++) {
+        System.out.print(locations[offset + j] + " ");
       }
 
       System.out.println();
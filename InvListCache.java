@@ -0,0 +1,183 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  A cache of term inverted lists that is shared by all of the
+ *  queries in a run, so that a term that occurs in many queries is
+ *  read from the index once.  Lists are keyed by (term, field).  The
+ *  cache has a budget in bytes; when it is full, the least recently
+ *  used lists are evicted.  Cached lists are shared, so they must
+ *  never be modified.
+ *  <p>
+ *  A list that doesn't store locations can't serve a query that
+ *  needs them.  Such a request is a miss, and the list that is read
+ *  for it replaces the cached list, because it serves both kinds of
+ *  request.
+ *  </p>
+ */
+public class InvListCache {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The budget, and the estimated size of the cached lists, in bytes.
+   */
+  private long budget;
+  private long size = 0;
+
+  /**
+   *  The cached lists, in least recently used order.
+   */
+  private LinkedHashMap<String, Entry> lists =
+    new LinkedHashMap<String, Entry> (16, 0.75f, true);
+
+  /**
+   *  Statistics.
+   */
+  private long hits = 0;
+  private long misses = 0;
+  private long evictions = 0;
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A cached list and its size when it was cached.  Compressed lists
+   *  grow as their blocks are decoded, so the size that was added to
+   *  the total must be remembered to subtract the same amount later.
+   */
+  private static class Entry {
+    private final InvList list;
+    private final long size;
+
+    private Entry (InvList list, long size) {
+      this.list = list;
+      this.size = size;
+    }
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty cache.
+   *  @param budget The maximum estimated size of the cached lists, in bytes.
+   *  @throws IllegalArgumentException The budget is negative.
+   */
+  public InvListCache (long budget) {
+
+    if (budget < 0) {
+      throw new IllegalArgumentException ("The cache budget can't be negative.");
+    }
+
+    this.budget = budget;
+  }
+
+  /**
+   *  Get a cached inverted list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param positionsNeeded True if the list must store locations.
+   *  @return The inverted list, or null if a suitable list isn't cached.
+   */
+  public InvList get (String termString, String fieldString,
+                      boolean positionsNeeded) {
+
+    Entry e = this.lists.get (InvListCache.key (termString, fieldString));
+
+    if ((e == null) || (positionsNeeded && ! e.list.hasPositions ())) {
+      this.misses++;
+      return null;
+    }
+
+    this.hits++;
+    return e.list;
+  }
+
+  /**
+   *  Add an inverted list to the cache, replacing any list that is
+   *  cached for the term now, and evict lists until the cache is
+   *  within its budget.  A list that is larger than the budget isn't
+   *  cached.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @param list The inverted list.
+   */
+  public void put (String termString, String fieldString, InvList list) {
+
+    long listSize = list.getSizeInBytes ();
+
+    if (listSize > this.budget)
+      return;
+
+    Entry old = this.lists.put (InvListCache.key (termString, fieldString),
+                                new Entry (list, listSize));
+
+    if (old != null)
+      this.size -= old.size;
+
+    this.size += listSize;
+
+    //  Iteration is from least to most recently used.
+
+    Iterator<Entry> i = this.lists.values ().iterator ();
+
+    while (this.size > this.budget) {
+      this.size -= i.next ().size;
+      i.remove ();
+      this.evictions++;
+    }
+  }
+
+  /**
+   *  Make the cache key for a term in a field.
+   */
+  private static String key (String termString, String fieldString) {
+    return fieldString + '\t' + termString;
+  }
+
+  /**
+   *  Get the number of requests that were served from the cache.
+   *  @return The number of hits.
+   */
+  public long getHits () {
+    return this.hits;
+  }
+
+  /**
+   *  Get the number of requests that weren't served from the cache.
+   *  @return The number of misses.
+   */
+  public long getMisses () {
+    return this.misses;
+  }
+
+  /**
+   *  Get the number of lists that were evicted to stay within the budget.
+   *  @return The number of evictions.
+   */
+  public long getEvictions () {
+    return this.evictions;
+  }
+
+  /**
+   *  Get the estimated size of the cached lists, as they were when
+   *  they were cached.
+   *  @return The size in bytes.
+   */
+  public long getSizeInBytes () {
+    return this.size;
+  }
+
+  /**
+   *  Get a string version of the cache statistics.
+   *  @return The string.
+   */
+  public String toString () {
+    return "InvList cache:  " + this.lists.size () + " lists, " +
+      (this.size / 1024) + " of " + (this.budget / 1024) + " KB, " +
+      this.hits + " hits, " + this.misses + " misses, " +
+      this.evictions + " evictions";
+  }
+}
@@ -0,0 +1,383 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.util.*;
+
+/**
+ *  An inverted list that is stored compressed in memory.  Postings
+ *  are grouped into the same blocks of InvList.SKIP_BLOCK_SIZE that
+ *  the skip index uses.  Within a block, docids are delta-encoded
+ *  (the first against the previous block's last docid), and docid
+ *  gaps, tfs, and the gaps between a document's locations are
+ *  written as variable-length integers (7 bits per byte, high bit
+ *  set on every byte except the last).  Docids and tfs are kept in
+ *  one byte stream and locations in another, so a block's locations
+ *  are decoded only if they are requested.
+ *  <p>
+ *  Iteration decodes one block at a time into small buffers, so
+ *  sequential access decodes each posting once and the skip index
+ *  lets searches pass blocks without decoding them.  The buffers
+ *  make a compressed list unsafe to share between threads.  A
+ *  compressed list is read-only.
+ *  </p>
+ */
+public class InvListCompressed extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  private static final int BLOCK_MASK = SKIP_BLOCK_SIZE - 1;
+
+  /**
+   *  The skip index:  The last docid of each block.
+   */
+  private int[] blockLastDocids;
+
+  /**
+   *  The offset of each block in docBytes and posBytes.
+   */
+  private int[] blockDocStarts;
+  private int[] blockPosStarts;
+
+  /**
+   *  The compressed docid/tf and location streams.
+   */
+  private byte[] docBytes;
+  private byte[] posBytes;
+
+  /**
+   *  Whether the list stores locations.
+   */
+  private boolean positionsStored;
+
+  /**
+   *  The block whose docids and tfs are decoded now, and its postings.
+   */
+  private int decodedBlock = -1;
+  private int[] blockDocids = new int[SKIP_BLOCK_SIZE];
+  private int[] blockTfs = new int[SKIP_BLOCK_SIZE];
+
+  /**
+   *  The block whose locations are decoded now, the offset of each
+   *  posting's first location, and the locations.
+   */
+  private int decodedPositionsBlock = -1;
+  private int[] blockOffsets = new int[SKIP_BLOCK_SIZE];
+  private int[] blockPositions = new int[SKIP_BLOCK_SIZE];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compress an inverted list.
+   *  @param list The inverted list to compress.
+   */
+  public InvListCompressed(InvList list) {
+
+    super (list.field, 0, 0);
+    this.df = list.df;
+    this.ctf = list.ctf;
+    this.positionsStored = list.hasPositions ();
+
+    int blocks = InvList.getBlockCount (this.df);
+
+    this.blockLastDocids = new int[blocks];
+    this.blockDocStarts = new int[blocks];
+    this.blockPosStarts = new int[blocks];
+
+    //  The streams are written into buffers that grow as needed,
+    //  then trimmed.  Most gaps fit in 1 or 2 bytes.
+
+    byte[] docOut = new byte[Math.max (16, this.df * 2)];
+    byte[] posOut = new byte[this.positionsStored ? Math.max (16, this.ctf * 2) : 0];
+    int docLength = 0;
+    int posLength = 0;
+    int lastDocid = 0;
+
+    for (int b = 0; b < blocks; b++) {
+
+      this.blockDocStarts[b] = docLength;
+      this.blockPosStarts[b] = posLength;
+
+      int end = Math.min ((b + 1) << SKIP_BLOCK_SHIFT, this.df);
+
+      for (int n = b << SKIP_BLOCK_SHIFT; n < end; n++) {
+        int docid = list.getDocid (n);
+        int tf = list.getTf (n);
+
+        if (docOut.length - docLength < 10)
+          docOut = Arrays.copyOf (docOut, docOut.length * 2);
+
+        docLength = writeVInt (docOut, docLength, docid - lastDocid);
+        docLength = writeVInt (docOut, docLength, tf);
+        lastDocid = docid;
+
+        if (! this.positionsStored)
+          continue;
+
+        int[] locations = list.getPositions (n);
+        int offset = list.getPositionsOffset (n);
+        int lastLocation = 0;
+
+        for (int j = 0; j < tf; j++) {
+          if (posOut.length - posLength < 5)
+            posOut = Arrays.copyOf (posOut, posOut.length * 2);
+
+          posLength = writeVInt (posOut, posLength,
+                                 locations[offset + j] - lastLocation);
+          lastLocation = locations[offset + j];
+        }
+      }
+
+      this.blockLastDocids[b] = lastDocid;
+    }
+
+    this.docBytes = Arrays.copyOf (docOut, docLength);
+    this.posBytes = Arrays.copyOf (posOut, posLength);
+  }
+
+  /**
+   *  Compressed lists are read-only.
+   *  @throws UnsupportedOperationException Always.
+   */
+  public boolean appendPosting (int docid, int[] locations, int count) {
+    throw new UnsupportedOperationException
+      ("Postings can't be appended to a compressed inverted list.");
+  }
+
+  /**
+   *  Compressed lists are read-only.
+   *  @throws UnsupportedOperationException Always.
+   */
+  public boolean appendPosting (int docid, int tf) {
+    throw new UnsupportedOperationException
+      ("Postings can't be appended to a compressed inverted list.");
+  }
+
+  /**
+   *  Decode the docids and tfs of a block, unless they are decoded now.
+   *  @param block The block to decode.
+   */
+  private void decodeBlock (int block) {
+
+    if (block == this.decodedBlock)
+      return;
+
+    byte[] in = this.docBytes;
+    int p = this.blockDocStarts[block];
+    int docid = (block == 0) ? 0 : this.blockLastDocids[block - 1];
+    int count = Math.min (SKIP_BLOCK_SIZE, this.df - (block << SKIP_BLOCK_SHIFT));
+
+    for (int i = 0; i < count; i++) {
+
+      //  Each value is a variable-length integer.  The loops are
+      //  written out so that decoding doesn't need a helper object.
+
+      int b = in[p++];
+      int gap = b & 0x7F;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = in[p++];
+        gap |= (b & 0x7F) << shift;
+      }
+
+      b = in[p++];
+      int tf = b & 0x7F;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = in[p++];
+        tf |= (b & 0x7F) << shift;
+      }
+
+      docid += gap;
+      this.blockDocids[i] = docid;
+      this.blockTfs[i] = tf;
+    }
+
+    this.decodedBlock = block;
+  }
+
+  /**
+   *  Decode the locations of a block, unless they are decoded now.
+   *  @param block The block to decode.
+   */
+  private void decodePositions (int block) {
+
+    if (block == this.decodedPositionsBlock)
+      return;
+
+    this.decodeBlock (block);
+
+    byte[] in = this.posBytes;
+    int p = this.blockPosStarts[block];
+    int end = (block + 1 < this.blockPosStarts.length) ?
+      this.blockPosStarts[block + 1] : in.length;
+    int count = Math.min (SKIP_BLOCK_SIZE, this.df - (block << SKIP_BLOCK_SHIFT));
+    int length = 0;
+
+    //  A block can't have more locations than bytes.
+
+    if (this.blockPositions.length < end - p)
+      this.blockPositions = new int[Math.max (end - p, this.blockPositions.length * 2)];
+
+    for (int i = 0; i < count; i++) {
+      int tf = this.blockTfs[i];
+      int location = 0;
+
+      this.blockOffsets[i] = length;
+
+      for (int j = 0; j < tf; j++) {
+        int b = in[p++];
+        int gap = b & 0x7F;
+        for (int shift = 7; b < 0; shift += 7) {
+          b = in[p++];
+          gap |= (b & 0x7F) << shift;
+        }
+
+        location += gap;
+        this.blockPositions[length++] = location;
+      }
+    }
+
+    this.decodedPositionsBlock = block;
+  }
+
+  /**
+   *  Find the first posting at or after index n whose document id is
+   *  at least docid.  Blocks that are skipped are not decoded.
+   *  @param n The index at which to start searching.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int n, int docid) {
+
+    if (n >= this.df)
+      return n;
+
+    int block = n >>> SKIP_BLOCK_SHIFT;
+
+    if (this.blockLastDocids[block] < docid) {
+      block = InvList.gallop (this.blockLastDocids,
+                              this.blockLastDocids.length, block + 1, docid);
+
+      if (block == this.blockLastDocids.length)
+        return this.df;
+
+      n = block << SKIP_BLOCK_SHIFT;
+    }
+
+    this.decodeBlock (block);
+
+    int count = Math.min (SKIP_BLOCK_SIZE, this.df - (block << SKIP_BLOCK_SHIFT));
+
+    return (block << SKIP_BLOCK_SHIFT) +
+      InvList.gallop (this.blockDocids, count, n & BLOCK_MASK, docid);
+  }
+
+  /**
+   *  Get the last document id in a skip index block.  The block
+   *  isn't decoded.
+   *  @param block The index of the block.
+   *  @return The internal document id.
+   */
+  public int getBlockLastDocid (int block) {
+    return this.blockLastDocids[block];
+  }
+
+  /**
+   *  Copy the docids and tfs of a skip index block into arrays.  The
+   *  block is decoded once.
+   *  @param block The index of the block.
+   *  @param docids An array of at least SKIP_BLOCK_SIZE docids.
+   *  @param tfs An array of at least SKIP_BLOCK_SIZE tfs.
+   *  @return The number of postings in the block.
+   */
+  public int getBlockPostings (int block, int[] docids, int[] tfs) {
+    int count = Math.min (SKIP_BLOCK_SIZE, this.df - (block << SKIP_BLOCK_SHIFT));
+
+    this.decodeBlock (block);
+    System.arraycopy (this.blockDocids, 0, docids, 0, count);
+    System.arraycopy (this.blockTfs, 0, tfs, 0, count);
+    return count;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid (int n) {
+    this.decodeBlock (n >>> SKIP_BLOCK_SHIFT);
+    return this.blockDocids[n & BLOCK_MASK];
+  }
+
+  /**
+   *  Get the location pool of the n'th posting's block.  It is valid
+   *  until a posting in another block is accessed.
+   *  @param n The index of the requested document.
+   *  @return The array that stores the document's locations.
+   */
+  public int[] getPositions (int n) {
+    if (! this.positionsStored) {
+      throw new IllegalStateException ("The inverted list doesn't store locations.");
+    }
+
+    this.decodePositions (n >>> SKIP_BLOCK_SHIFT);
+    return this.blockPositions;
+  }
+
+  /**
+   *  Get the index in the block's location pool of the first location
+   *  of the n'th posting.
+   *  @param n The index of the requested document.
+   *  @return The offset of the document's first location.
+   */
+  public int getPositionsOffset (int n) {
+    this.decodePositions (n >>> SKIP_BLOCK_SHIFT);
+    return this.blockOffsets[n & BLOCK_MASK];
+  }
+
+  /**
+   *  Returns true if the list stores the locations of its postings.
+   *  @return True if the list stores locations.
+   */
+  public boolean hasPositions () {
+    return this.positionsStored;
+  }
+
+  /**
+   *  Estimate the number of bytes of heap that the list occupies,
+   *  including its decoding buffers.
+   *  @return The approximate size of the list in bytes.
+   */
+  public long getSizeInBytes () {
+    return 128 + this.docBytes.length + this.posBytes.length +
+      4L * (3L * this.blockLastDocids.length + 3L * SKIP_BLOCK_SIZE +
+            this.blockPositions.length);
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf (int n) {
+    this.decodeBlock (n >>> SKIP_BLOCK_SHIFT);
+    return this.blockTfs[n & BLOCK_MASK];
+  }
+
+  /**
+   *  Write a non-negative integer as a variable-length integer.
+   *  @param out The output buffer, which must have room for 5 bytes.
+   *  @param p The index at which to write.
+   *  @param value The value to write.
+   *  @return The index after the value.
+   */
+  private static int writeVInt (byte[] out, int p, int value) {
+
+    while ((value & ~0x7F) != 0) {
+      out[p++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+
+    out[p++] = (byte) value;
+    return p;
+  }
+}
@@ -0,0 +1,201 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.nio.*;
+
+/**
+ *  An inverted list that is read directly from a memory-mapped
+ *  PostingCache file.  Docids and tfs are never copied onto the heap.
+ *  Locations are copied into a small buffer one document at a time,
+ *  and only when they are requested.  A mapped list is read-only.
+ */
+public class InvListMapped extends InvList {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The mapped file, and the index of each part of this list in it.
+   */
+  private IntBuffer data;
+  private int docidStart;
+  private int tfStart;
+  private int offsetStart;
+  private int positionStart;
+
+  /**
+   *  The posting whose locations are in the buffer now.
+   */
+  private int bufferedPosting = -1;
+  private int[] buffer = new int[16];
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an inverted list from part of a mapped posting cache.
+   *  @param fieldString The field that the term occurs in.
+   *  @param data The mapped posting cache.
+   *  @param start The index of the list's first docid in data.
+   *  @param df The document frequency of the list.
+   *  @param ctf The collection term frequency of the list.
+   */
+  public InvListMapped (String fieldString, IntBuffer data, int start,
+                        int df, int ctf) {
+
+    super (fieldString, 0, 0);
+    this.df = df;
+    this.ctf = ctf;
+    this.data = data;
+    this.docidStart = start;
+    this.tfStart = start + df;
+    this.offsetStart = start + 2 * df;
+    this.positionStart = start + 3 * df;
+  }
+
+  /**
+   *  Mapped lists are read-only.
+   *  @throws UnsupportedOperationException Always.
+   */
+  public boolean appendPosting (int docid, int[] locations, int count) {
+    throw new UnsupportedOperationException
+      ("Postings can't be appended to a mapped inverted list.");
+  }
+
+  /**
+   *  Mapped lists are read-only.
+   *  @throws UnsupportedOperationException Always.
+   */
+  public boolean appendPosting (int docid, int tf) {
+    throw new UnsupportedOperationException
+      ("Postings can't be appended to a mapped inverted list.");
+  }
+
+  /**
+   *  Find the first posting at or after index n whose document id is
+   *  at least docid.  The search gallops over the mapped docids.
+   *  @param n The index at which to start searching.
+   *  @param docid The internal document id to search for.
+   *  @return The index of the posting, or df if there is none.
+   */
+  public int findDocid (int n, int docid) {
+
+    if ((n >= this.df) || (this.getDocid (n) >= docid))
+      return n;
+
+    //  Invariant:  getDocid(lo) < docid, and hi is df or getDocid(hi) >= docid.
+
+    int lo = n;
+    int hi = n + 1;
+    int step = 1;
+
+    while ((hi < this.df) && (this.getDocid (hi) < docid)) {
+      lo = hi;
+      step <<= 1;
+      hi = lo + step;
+    }
+
+    if (hi > this.df)
+      hi = this.df;
+
+    while (hi - lo > 1) {
+      int mid = (lo + hi) >>> 1;
+
+      if (this.getDocid (mid) < docid)
+        lo = mid;
+      else
+        hi = mid;
+    }
+
+    return hi;
+  }
+
+  /**
+   *  Get the last document id in a skip index block.  A mapped list
+   *  has no skip index; the docid is read from the block's last posting.
+   *  @param block The index of the block.
+   *  @return The internal document id.
+   */
+  public int getBlockLastDocid (int block) {
+    return this.getDocid (Math.min ((block + 1) << SKIP_BLOCK_SHIFT, this.df) - 1);
+  }
+
+  /**
+   *  Copy the docids and tfs of a skip index block into arrays.
+   *  @param block The index of the block.
+   *  @param docids An array of at least SKIP_BLOCK_SIZE docids.
+   *  @param tfs An array of at least SKIP_BLOCK_SIZE tfs.
+   *  @return The number of postings in the block.
+   */
+  public int getBlockPostings (int block, int[] docids, int[] tfs) {
+    int start = block << SKIP_BLOCK_SHIFT;
+    int count = Math.min (SKIP_BLOCK_SIZE, this.df - start);
+
+    for (int i = 0; i < count; i++) {
+      docids[i] = this.data.get (this.docidStart + start + i);
+      tfs[i] = this.data.get (this.tfStart + start + i);
+    }
+
+    return count;
+  }
+
+  /**
+   *  Get the n'th document id from the inverted list.
+   *  @param n The index of the requested document.
+   *  @return The internal document id.
+   */
+  public int getDocid (int n) {
+    return this.data.get (this.docidStart + n);
+  }
+
+  /**
+   *  Get a buffer that holds the locations of the n'th posting.  It
+   *  is valid until the locations of another posting are requested.
+   *  @param n The index of the requested document.
+   *  @return The array that stores the document's locations.
+   */
+  public int[] getPositions (int n) {
+
+    if (n != this.bufferedPosting) {
+      int tf = this.getTf (n);
+      int start = this.positionStart + this.data.get (this.offsetStart + n);
+
+      if (tf > this.buffer.length)
+        this.buffer = new int[Math.max (tf, this.buffer.length * 2)];
+
+      for (int j = 0; j < tf; j++)
+        this.buffer[j] = this.data.get (start + j);
+
+      this.bufferedPosting = n;
+    }
+
+    return this.buffer;
+  }
+
+  /**
+   *  The locations of a posting always start at the beginning of
+   *  the buffer.
+   *  @param n The index of the requested document.
+   *  @return 0
+   */
+  public int getPositionsOffset (int n) {
+    return 0;
+  }
+
+  /**
+   *  Estimate the number of bytes of heap that the list occupies.
+   *  The postings are in the mapped file, so only the buffer counts.
+   *  @return The approximate size of the list in bytes.
+   */
+  public long getSizeInBytes () {
+    return 64 + 4L * this.buffer.length;
+  }
+
+  /**
+   *  Get the term frequency in the n'th document of the inverted list.
+   *  @param n The index of the requested document term frequency.
+   *  @return The document's term frequency.
+   */
+  public int getTf (int n) {
+    return this.data.get (this.tfStart + n);
+  }
+}
@@ -0,0 +1,356 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A rank-safe MaxScore evaluator for BM25 #SUM queries whose
+ *  arguments are SCORE operators.  Each argument's score is bounded
+ *  by the score of its largest tf in a document of length 0.  The
+ *  arguments are ordered by bound.  Once the top k results are known
+ *  to score at least a threshold, the arguments whose bounds sum to
+ *  less than the threshold are "non-essential":  a document that
+ *  matches only them can't enter the top k, so candidates come only
+ *  from the essential arguments, and the non-essential arguments are
+ *  probed (with docIteratorAdvanceTo) only while the candidate can
+ *  still reach the threshold.
+ *  <p>
+ *  The documents and scores are the same as QrySopSum produces.
+ *  Scores are added in argument order, as QrySopSum adds them, so
+ *  they are identical, not just close.
+ *  </p>
+ */
+public class MaxScoreEvaluator {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  Bounds are raised by this fraction so that rounding can't make a
+   *  bound smaller than a score that it bounds.
+   */
+  private static final double BOUND_SLACK = 1e-9;
+
+  private RetrievalModelBM25 model;
+
+  /**
+   *  The SCORE operators, their inverted lists, and their bounds, in
+   *  argument order.
+   */
+  private QrySopScore[] scorers;
+  private QryIop[] lists;
+  private double[] bounds;
+
+  /**
+   *  The argument indexes in order of increasing bound, and the sum of
+   *  the first i+1 of those bounds.
+   */
+  private int[] order;
+  private double[] boundSums;
+
+  /**
+   *  The score of each argument in the current candidate.
+   */
+  private double[] argScores;
+  private boolean[] argMatched;
+
+  /**
+   *  The top k results so far.
+   */
+  private TopKCollector collector;
+
+  /**
+   *  Statistics.
+   */
+  private long docsConsidered = 0;
+  private long docsScored = 0;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Returns true if the evaluator can evaluate the query with the
+   *  retrieval model.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is a BM25 #SUM of SCORE operators.
+   */
+  public static boolean isApplicable (Qry q, RetrievalModel r) {
+
+    if (! (r instanceof RetrievalModelBM25) ||
+        ! (q instanceof QrySopSum) ||
+        (q.args.size () == 0)) {
+      return false;
+    }
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Prepare to evaluate a query.  The query must be initialized.
+   *  @param q The query, which must satisfy isApplicable.
+   *  @param model The BM25 retrieval model.
+   *  @param collector The collector of the top results.
+   */
+  public MaxScoreEvaluator (QrySopSum q, RetrievalModelBM25 model,
+                            TopKCollector collector) {
+
+    int n = q.args.size ();
+
+    this.model = model;
+    this.collector = collector;
+    this.scorers = new QrySopScore[n];
+    this.lists = new QryIop[n];
+    this.bounds = new double[n];
+    this.argScores = new double[n];
+    this.argMatched = new boolean[n];
+
+    for (int i = 0; i < n; i++) {
+      this.scorers[i] = (QrySopScore) q.args.get (i);
+      this.lists[i] = (QryIop) this.scorers[i].args.get (0);
+      this.bounds[i] = getBound (this.lists[i], model);
+    }
+
+    //  Order the arguments by increasing bound.
+
+    Integer[] byBound = new Integer[n];
+
+    for (int i = 0; i < n; i++)
+      byBound[i] = i;
+
+    Arrays.sort (byBound, new Comparator<Integer> () {
+        public int compare (Integer i1, Integer i2) {
+          return Double.compare (bounds[i1], bounds[i2]);
+        }
+      });
+
+    this.order = new int[n];
+    this.boundSums = new double[n];
+
+    double sum = 0;
+
+    for (int i = 0; i < n; i++) {
+      this.order[i] = byBound[i];
+      sum += this.bounds[byBound[i]];
+      this.boundSums[i] = sum;
+    }
+  }
+
+  /**
+   *  Bound the BM25 score of an argument in any document.  The BM25 tf
+   *  weight grows with tf and shrinks with document length, so the
+   *  bound is the score of the largest tf in a document of length 0.
+   *  @param list The argument's inverted list.
+   *  @param model The BM25 model that scores it.
+   *  @return A bound on the argument's score.
+   */
+  static double getBound (QryIop list, RetrievalModelBM25 model) {
+    return getBound (list.idf, list.getMaxTf (),
+                     model.getK_1 () * (1 - model.getB ()));
+  }
+
+  /**
+   *  Bound the BM25 score of a term in a set of documents.
+   *  @param idf The term's idf.
+   *  @param maxTf The largest tf of the documents.
+   *  @param norm The smallest value of the k_1 length normalization
+   *  of the documents.
+   *  @return A bound on the term's score in each of the documents.
+   */
+  static double getBound (double idf, double maxTf, double norm) {
+    return idf * (maxTf / (maxTf + norm)) * (1 + BOUND_SLACK);
+  }
+
+  /**
+   *  Evaluate the query.
+   *  @return The top results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList evaluate () throws IOException {
+
+    int n = this.order.length;
+    int firstEssential = 0;
+    double threshold = this.collector.getThreshold ();
+
+    while (true) {
+
+      //  The candidate is the smallest docid of the essential arguments.
+
+      int docid = Integer.MAX_VALUE;
+
+      for (int i = firstEssential; i < n; i++) {
+        QryIop list = this.lists[this.order[i]];
+
+        if (list.docIteratorHasMatch (this.model))
+          docid = Math.min (docid, list.docIteratorGetMatch ());
+      }
+
+      if (docid == Integer.MAX_VALUE)
+        break;
+
+      this.docsConsidered++;
+
+      //  Score the essential arguments, then probe the non-essential
+      //  arguments, largest bound first, while the candidate can still
+      //  reach the threshold.
+
+      double partial = 0;
+
+      Arrays.fill (this.argMatched, false);
+
+      for (int i = firstEssential; i < n; i++)
+        partial += this.scoreArg (this.order[i], docid);
+
+      boolean pruned = false;
+
+      for (int i = firstEssential - 1; i >= 0; i--) {
+        if (partial + this.boundSums[i] < threshold) {
+          pruned = true;
+          break;
+        }
+
+        this.lists[this.order[i]].docIteratorAdvanceTo (docid);
+        partial += this.scoreArg (this.order[i], docid);
+      }
+
+      if (! pruned) {
+        this.docsScored++;
+
+        if (this.collect (docid)) {
+          threshold = this.collector.getThreshold ();
+
+          while ((firstEssential < n) &&
+                 (this.boundSums[firstEssential] < threshold))
+            firstEssential++;
+        }
+      }
+
+      //  Move the essential arguments past the candidate.
+
+      for (int i = firstEssential; i < n; i++) {
+        QryIop list = this.lists[this.order[i]];
+
+        if (list.docIteratorHasMatch (this.model) &&
+            (list.docIteratorGetMatch () == docid))
+          list.docIteratorAdvancePast (docid);
+      }
+    }
+
+    return this.collector.getScoreList ();
+  }
+
+  /**
+   *  Score an argument if it matches a document.
+   *  @param i The index of the argument.
+   *  @param docid The document.
+   *  @return The argument's score, or 0 if it doesn't match.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private double scoreArg (int i, int docid) throws IOException {
+
+    QryIop list = this.lists[i];
+
+    if (! list.docIteratorHasMatch (this.model) ||
+        (list.docIteratorGetMatch () != docid))
+      return 0;
+
+    this.argScores[i] = this.scorers[i].getScore (this.model);
+    this.argMatched[i] = true;
+    return this.argScores[i];
+  }
+
+  /**
+   *  Add the current candidate to the top results if it belongs there.
+   *  Its score is the sum of the argument scores in argument order.
+   *  @param docid The document.
+   *  @return True if the candidate was added.
+   */
+  private boolean collect (int docid) {
+
+    double score = 0.0;
+
+    for (int i = 0; i < this.argScores.length; i++) {
+      if (this.argMatched[i])
+        score += this.argScores[i];
+    }
+
+    return this.collector.collect (docid, score);
+  }
+
+  /**
+   *  Count the documents that match at least one of a set of inverted
+   *  lists, by merging the lists.  The docIterators don't move.
+   *  @param lists The inverted lists.
+   *  @return The number of documents, or -1 if a list isn't materialized.
+   */
+  static long countMatches (QryIop[] lists) {
+
+    InvList[] invLists = new InvList[lists.length];
+    int[] next = new int[lists.length];
+
+    for (int i = 0; i < lists.length; i++) {
+      if (lists[i].invertedList == null)
+        return -1;
+
+      invLists[i] = lists[i].invertedList;
+    }
+
+    long count = 0;
+
+    while (true) {
+      int docid = Integer.MAX_VALUE;
+
+      for (int i = 0; i < invLists.length; i++) {
+        if (next[i] < invLists[i].df)
+          docid = Math.min (docid, invLists[i].getDocid (next[i]));
+      }
+
+      if (docid == Integer.MAX_VALUE)
+        return count;
+
+      count++;
+
+      for (int i = 0; i < invLists.length; i++) {
+        if ((next[i] < invLists[i].df) && (invLists[i].getDocid (next[i]) == docid))
+          next[i]++;
+      }
+    }
+  }
+
+  /**
+   *  Get a report of how much of the query was pruned:  the documents
+   *  that match the query (if the lists are materialized), the
+   *  candidates, and the documents that were scored.  Counting the
+   *  matching documents reads the inverted lists again, so it should
+   *  only be done when the report is wanted.
+   *  @return The report.
+   */
+  public String getPruningReport () {
+    long matches = MaxScoreEvaluator.countMatches (this.lists);
+
+    return "MaxScore:  " + ((matches < 0) ? "?" : Long.toString (matches)) +
+      " docs matched, " + this.docsConsidered + " candidates, " +
+      this.docsScored + " docs scored";
+  }
+
+  /**
+   *  Get the number of documents that were candidates.
+   *  @return The number of candidates.
+   */
+  public long getDocsConsidered () {
+    return this.docsConsidered;
+  }
+
+  /**
+   *  Get the number of candidates that were fully scored.
+   *  @return The number of documents scored.
+   */
+  public long getDocsScored () {
+    return this.docsScored;
+  }
+}
@@ -0,0 +1,255 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ *  A read-only file of pre-decoded inverted lists that is memory-mapped
+ *  when it is opened.  BuildPostingCache writes the file for the most
+ *  frequent terms of each field.  Lists are served as InvListMapped
+ *  objects that read docids and tfs directly from the mapped file, so
+ *  cached postings live in the operating system's page cache (shared
+ *  by every process that maps the file) rather than on the Java heap.
+ *  <p>
+ *  File format (all values are big-endian ints unless noted):
+ *  </p>
+ *  <pre>
+ *    header:     MAGIC, VERSION
+ *    lists:      for each list:  docids[df], tfs[df],
+ *                                offsets[df], locations[ctf]
+ *    directory:  count, then for each list:
+ *                field (UTF), term (UTF), df, ctf, start
+ *    trailer:    directory offset (long)
+ *  </pre>
+ *  <p>
+ *  start is the index (in ints, from the beginning of the file) of a
+ *  list's first docid.  offsets[n] is the index of the n'th posting's
+ *  first location in the list's locations array.
+ *  </p>
+ */
+public class PostingCache {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The name of the posting cache file in an index directory.
+   */
+  public static final String FILE_NAME = "postings.cache";
+
+  /**
+   *  The name of the phrase cache file in an index directory.  It is
+   *  a posting cache of #NEAR/1 lists, written by BuildPhraseCache,
+   *  whose terms are phrase keys.
+   */
+  public static final String PHRASE_FILE_NAME = "phrases.cache";
+
+  public static final int MAGIC = 0x51504331;	// "QPC1"
+  public static final int VERSION = 1;
+
+  /**
+   *  The mapped file.
+   */
+  private IntBuffer data;
+
+  /**
+   *  The directory:  (field, term) to the list's location in the file.
+   */
+  private Map<String, Entry> entries = new HashMap<String, Entry>();
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A directory entry.
+   */
+  private static class Entry {
+    private int df;
+    private int ctf;
+    private int start;
+  }
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Open a posting cache file.
+   *  @param file The posting cache file.
+   *  @throws IOException Error reading the file, or it isn't a posting cache.
+   */
+  public PostingCache (File file) throws IOException {
+
+    RandomAccessFile raf = new RandomAccessFile (file, "r");
+
+    try {
+      long length = raf.length ();
+
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException (file + " is too large to map.");
+      }
+
+      if ((length < 16) || (raf.readInt () != MAGIC) ||
+          (raf.readInt () != VERSION)) {
+        throw new IOException (file + " is not a posting cache file.");
+      }
+
+      //  Read the directory.
+
+      raf.seek (length - 8);
+      raf.seek (raf.readLong ());
+
+      int count = raf.readInt ();
+
+      for (int i = 0; i < count; i++) {
+        String field = raf.readUTF ();
+        String term = raf.readUTF ();
+        Entry e = new Entry ();
+
+        e.df = raf.readInt ();
+        e.ctf = raf.readInt ();
+        e.start = raf.readInt ();
+        this.entries.put (PostingCache.key (term, field), e);
+      }
+
+      //  Map the file.  The mapping remains valid after the file is closed.
+
+      MappedByteBuffer buffer =
+        raf.getChannel ().map (FileChannel.MapMode.READ_ONLY, 0, length);
+      this.data = buffer.asIntBuffer ();
+    } finally {
+      raf.close ();
+    }
+  }
+
+  /**
+   *  Get a cached inverted list.
+   *  @param termString The processed (stemmed, lower-cased, etc) term string.
+   *  @param fieldString The field that the term occurs in.
+   *  @return The inverted list, or null if it isn't cached.
+   */
+  public InvList getInvList (String termString, String fieldString) {
+
+    Entry e = this.entries.get (PostingCache.key (termString, fieldString));
+
+    if (e == null)
+      return null;
+
+    return new InvListMapped (fieldString, this.data, e.start, e.df, e.ctf);
+  }
+
+  /**
+   *  Make the directory key for a term in a field.
+   */
+  private static String key (String termString, String fieldString) {
+    return fieldString + '\t' + termString;
+  }
+
+  /**
+   *  Make the term under which the #NEAR/1 list of a pair of terms is
+   *  stored in a phrase cache.  Processed terms don't contain spaces.
+   *  @param term1 The first processed term.
+   *  @param term2 The second processed term.
+   *  @return The phrase key.
+   */
+  public static String phraseKey (String term1, String term2) {
+    return term1 + ' ' + term2;
+  }
+
+  /**
+   *  Get the number of inverted lists in the cache.
+   *  @return The number of inverted lists.
+   */
+  public int size () {
+    return this.entries.size ();
+  }
+
+  /**
+   *  Writes a posting cache file one inverted list at a time, so
+   *  that only one list needs to be in memory.
+   */
+  public static class Writer {
+
+    private DataOutputStream out;
+    private long position;
+    private List<String> fields = new ArrayList<String> ();
+    private List<String> terms = new ArrayList<String> ();
+    private List<int[]> stats = new ArrayList<int[]> ();
+
+    /**
+     *  Create a posting cache file.
+     *  @param file The file to write.
+     *  @throws IOException Error creating the file.
+     */
+    public Writer (File file) throws IOException {
+      this.out =
+        new DataOutputStream (new BufferedOutputStream (new FileOutputStream (file)));
+      this.out.writeInt (MAGIC);
+      this.out.writeInt (VERSION);
+      this.position = 8;
+    }
+
+    /**
+     *  Append an inverted list to the file.
+     *  @param fieldString The field of the list.
+     *  @param termString The term (or other key) of the list.
+     *  @param list The inverted list, which must store locations.
+     *  @throws IOException Error writing the file.
+     */
+    public void add (String fieldString, String termString, InvList list)
+      throws IOException {
+
+      if (this.position / 4 + 3L * list.df + list.ctf > Integer.MAX_VALUE) {
+        throw new IOException ("The posting cache would be too large to map.");
+      }
+
+      for (int n = 0; n < list.df; n++)
+        this.out.writeInt (list.getDocid (n));
+
+      for (int n = 0; n < list.df; n++)
+        this.out.writeInt (list.getTf (n));
+
+      int offset = 0;
+
+      for (int n = 0; n < list.df; n++) {
+        this.out.writeInt (offset);
+        offset += list.getTf (n);
+      }
+
+      for (int n = 0; n < list.df; n++) {
+        int[] locations = list.getPositions (n);
+        int start = list.getPositionsOffset (n);
+
+        for (int j = 0; j < list.getTf (n); j++)
+          this.out.writeInt (locations[start + j]);
+      }
+
+      this.fields.add (fieldString);
+      this.terms.add (termString);
+      this.stats.add (new int[] { list.df, list.ctf, (int) (this.position / 4) });
+      this.position += 4L * (3L * list.df + list.ctf);
+    }
+
+    /**
+     *  Write the directory and close the file.
+     *  @throws IOException Error writing the file.
+     */
+    public void close () throws IOException {
+
+      this.out.writeInt (this.fields.size ());
+
+      for (int i = 0; i < this.fields.size (); i++) {
+        int[] s = this.stats.get (i);
+
+        this.out.writeUTF (this.fields.get (i));
+        this.out.writeUTF (this.terms.get (i));
+        this.out.writeInt (s[0]);
+        this.out.writeInt (s[1]);
+        this.out.writeInt (s[2]);
+      }
+
+      this.out.writeLong (this.position);
+      this.out.close ();
+    }
+  }
+}
@@ -100,6 +100,26 @@ public abstract class Qry {
   private boolean matchStored = false;	// Operators can cache matches
   private int matchingDocid;
 
+  /**
+   *  Operators with at least this many arguments find the smallest
+   *  docid of their arguments (docIteratorHasMatchMin) with a heap,
+   *  so each step costs O(log n) instead of O(n).  0 disables it.
+   */
+  private static int unionHeapMinArgs = 16;
+
+  /**
+   *  The heap of the arguments that aren't known to be exhausted,
+   *  keyed by docid, and the retrieval model that it matches with.
+   *  Arguments that this operator advances get their new docids as
+   *  keys.  An argument may also be advanced directly (e.g., while
+   *  its parent scores a document), so a key is only a lower bound on
+   *  the argument's docid, and it is checked when the argument
+   *  reaches the top of the heap.  The heap is null until
+   *  docIteratorHasMatchMin first needs it.
+   */
+  private ArgHeap unionHeap = null;
+  private RetrievalModel unionModel = null;
+
   //  --------------- Methods ---------------------------------------
 
   /**
@@ -195,9 +215,21 @@ public abstract class Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
+    if (this.unionHeap != null) {
+
+      //  Arguments whose keys are past docid are already past it.
+
+      while (! this.unionHeap.isEmpty () && (this.unionHeap.topKey () <= docid)) {
+        Qry q_i = this.args.get (this.unionHeap.topArg ());
+
+        q_i.docIteratorAdvancePast (docid);
+        this.docIteratorUpdateHeapTop (q_i);
+      }
+    } else {
       for (Qry q_i: this.args) {
         q_i.docIteratorAdvancePast (docid);
       }
+    }
 
     this.docIteratorClearMatchCache ();
     }
@@ -209,8 +241,17 @@ public abstract class Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
     
-    for (Qry q_i: this.args) {
-      q_i.docIteratorAdvanceTo (docid);
+    if (this.unionHeap != null) {
+      while (! this.unionHeap.isEmpty () && (this.unionHeap.topKey () < docid)) {
+        Qry q_i = this.args.get (this.unionHeap.topArg ());
+
+        q_i.docIteratorAdvanceTo (docid);
+        this.docIteratorUpdateHeapTop (q_i);
+      }
+    } else {
+      for (Qry q_i: this.args) {
+        q_i.docIteratorAdvanceTo (docid);
+      }
     }
     
     this.docIteratorClearMatchCache ();
@@ -332,6 +373,10 @@ public abstract class Qry {
    */
   protected boolean docIteratorHasMatchMin (RetrievalModel r) {
 
+    if ((Qry.unionHeapMinArgs > 0) && (this.args.size () >= Qry.unionHeapMinArgs)) {
+      return this.docIteratorHasMatchMinHeap (r);
+    }
+
     int minDocid = Qry.INVALID_DOCID;
 
     for (int i=0; i<this.args.size(); i++) {
@@ -355,6 +400,82 @@ public abstract class Qry {
     }
   }
 
+  /**
+   *  docIteratorHasMatchMin for operators with many arguments.  The
+   *  top of the heap is the smallest docid once its key is checked,
+   *  because every other key is a lower bound.
+   *  @param r The retrieval model that determines what is a match
+   *  @return True if the query matches, otherwise false.
+   */
+  private boolean docIteratorHasMatchMinHeap (RetrievalModel r) {
+
+    this.unionModel = r;
+
+    if (this.unionHeap == null) {
+      this.unionHeap = new ArgHeap (this.args.size ());
+
+      for (int i=0; i<this.args.size(); i++) {
+        Qry q_i = this.args.get(i);
+
+        if (q_i.docIteratorHasMatch (r)) {
+          this.unionHeap.add (i, q_i.docIteratorGetMatch ());
+        }
+      }
+    }
+
+    while (! this.unionHeap.isEmpty ()) {
+      Qry q_i = this.args.get (this.unionHeap.topArg ());
+
+      if (! q_i.docIteratorHasMatch (r)) {
+        this.unionHeap.pop ();
+        continue;
+      }
+
+      int docid = q_i.docIteratorGetMatch ();
+
+      if (docid == this.unionHeap.topKey ()) {
+        docIteratorSetMatchCache (docid);
+        return true;
+      }
+
+      this.unionHeap.replaceTopKey (docid);
+    }
+
+    return false;
+  }
+
+  /**
+   *  Give the argument at the top of the heap its current docid as
+   *  its key, or remove it if it is exhausted.
+   *  @param q_i The argument at the top of the heap.
+   */
+  private void docIteratorUpdateHeapTop (Qry q_i) {
+    if (q_i.docIteratorHasMatch (this.unionModel)) {
+      this.unionHeap.replaceTopKey (q_i.docIteratorGetMatch ());
+    } else {
+      this.unionHeap.pop ();
+    }
+  }
+
+  /**
+   *  Forget the iterator's state, so that iteration can start again
+   *  after the arguments are initialized.
+   */
+  protected void docIteratorReset () {
+    this.unionHeap = null;
+    this.unionModel = null;
+    this.docIteratorClearMatchCache ();
+  }
+
+  /**
+   *  Set the smallest number of arguments for which operators find
+   *  the smallest argument docid with a heap.
+   *  @param minArgs The number of arguments, or 0 to never use a heap.
+   */
+  public static void setUnionHeapMinArgs (int minArgs) {
+    Qry.unionHeapMinArgs = minArgs;
+  }
+
   /**
    *  Return the status of the cache.
    *  @return True if a match is cached, otherwise false.
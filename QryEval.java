@@ -68,6 +68,15 @@ public class QryEval {
     private static String fbInitialRankingFile = "";
     private static String fbExpansionQueryFile = "";
     private static Map<String, ScoreList> initialRanking = new HashMap<String, ScoreList>();
+    private static String dynamicPruning = "none";
+    private static boolean pruningReport = false;
+    private static boolean statsReport = false;
+    private static int resultDepth = 100;
+    private static boolean compilePlans = false;
+    private static boolean scoreAtATime = false;
+    private static String termAtATime = "none";
+    private static long scoreAtATimePostings = 0;
+    private static long scoreAtATimeMs = 0;
 
     //  --------------- Methods ---------------------------------------
 
@@ -99,11 +108,14 @@ public class QryEval {
         //  Configure Fuery lexical processing to match index lexical
         //  processing.  Initialize the index and retrieval model.
 
-        ANALYZER.setLowercase(true);
-        ANALYZER.setStopwordRemoval(true);
-        ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
-
+        configureAnalyzer();
         Idx.initialize(parameters.get("indexPath"));
+
+        if (statsReport &&
+            parameters.containsKey("denseDocLengths") &&
+            parameters.get("denseDocLengths").equalsIgnoreCase("true")) {
+            System.out.println(Idx.getDocLengthStore());
+        }
         if(parameters.get("retrievalAlgorithm").toLowerCase().equals("letor")){
             LearnToRank ltr = new LearnToRank(parameters);
         } else {
@@ -120,6 +132,10 @@ public class QryEval {
 
         //  Clean up.
 
+        if (statsReport && QryIopTerm.getCache() != null) {
+            System.out.println(QryIopTerm.getCache());
+        }
+
         timer.stop();
         System.out.println("Time:  " + timer);
     }
@@ -148,12 +164,20 @@ public class QryEval {
             if (k_1 < 0.0 || k_3 < 0.0) throw new IllegalArgumentException("required: k_1>=0.0, k_3>=0.0");
             if (b < 0.0 && b > 1.0) throw new IllegalArgumentException("required:  0<=b<=1");
             model = new RetrievalModelBM25(k_1, b, k_3);
+            if (parameters.containsKey("BM25:normTable")) {
+                ((RetrievalModelBM25) model).setNormTable(
+                    parameters.get("BM25:normTable").equalsIgnoreCase("true"));
+            }
         } else if (modelString.equals("indri")) {
             double lambda = Double.valueOf(parameters.get("Indri:lambda"));
             double mu = Double.valueOf(parameters.get("Indri:mu"));
             if (mu < 0) throw new IllegalArgumentException("required: mu>=0");
             if (lambda < 0.0 && lambda > 1.0) throw new IllegalArgumentException("required:  0<=lambda<=1");
             model = new RetrievalModelIndri(mu, lambda);
+            if (parameters.containsKey("Indri:logSpace")) {
+                ((RetrievalModelIndri) model).setLogSpace(
+                    parameters.get("Indri:logSpace").equalsIgnoreCase("true"));
+            }
         } else {
             throw new IllegalArgumentException
                     ("Unknown retrieval model " + parameters.get("retrievalAlgorithm"));
@@ -162,11 +186,23 @@ public class QryEval {
         return model;
     }
 
+    /**
+     * Configure query lexical processing to match index lexical
+     * processing.  Tools that parse queries call it too.
+     */
+    static void configureAnalyzer() {
+        ANALYZER.setLowercase(true);
+        ANALYZER.setStopwordRemoval(true);
+        ANALYZER.setStemmer(EnglishAnalyzerConfigurable.StemmerType.KSTEM);
+    }
+
     /**
      * Optimize the query by removing degenerate nodes produced during
      * query parsing, for example '#NEAR/1 (of the)' which turns into
      * '#NEAR/1 ()' after stopwords are removed; and unnecessary nodes
      * or subtrees, such as #AND (#AND (a)), which can be replaced by 'a'.
+     * '#NEAR/1 (a b)' is replaced by a precomputed phrase list if the
+     * index has one.
      */
     static Qry optimizeQuery(Qry q) {
 
@@ -208,6 +244,17 @@ public class QryEval {
             q = q.args.get(0);
         }
 
+        //  An adjacent pair of terms whose postings were precomputed
+        //  is replaced by the precomputed list.
+
+        if (q instanceof QryIopNear) {
+            QryIopPhrase phrase = QryIopPhrase.rewrite((QryIopNear) q);
+
+            if (phrase != null) {
+                q = phrase;
+            }
+        }
+
         return q;
 
     }
@@ -480,22 +527,100 @@ public class QryEval {
 
         if (q != null) {
 
-            ScoreList r = new ScoreList();
+            //  Only the top resultDepth documents are kept as the
+            //  query is evaluated.
+
+            TopKCollector collector = new TopKCollector(resultDepth);
+            boolean logSpace = (model instanceof RetrievalModelIndri) &&
+                ((RetrievalModelIndri) model).getLogSpace();
 
             if (q.args.size() > 0) {        // Ignore empty queries
 
-                q.initialize(model);
+                //  Score-at-a-time needs the index's impact-ordered
+                //  postings.  It is chosen before the query is
+                //  initialized, because it initializes the query with
+                //  streaming terms, so that their docid-ordered lists
+                //  aren't read.  Block-Max WAND needs materialized
+                //  inverted lists; otherwise it falls back to MaxScore.
+
+                boolean useScoreAtATime = scoreAtATime &&
+                    ScoreAtATimeEvaluator.isApplicable(q, model, Idx.getImpactIndex());
+
+                if (!useScoreAtATime) {
+                    q.initialize(model);
+                }
+
+                if (useScoreAtATime) {
+                    ScoreAtATimeEvaluator evaluator =
+                        new ScoreAtATimeEvaluator((QrySopSum) q, (RetrievalModelBM25) model,
+                                                  Idx.getImpactIndex(), collector, resultDepth);
+                    evaluator.setPostingsBudget(scoreAtATimePostings);
+                    evaluator.setTimeBudget(scoreAtATimeMs);
+                    evaluator.evaluate();
+                    if (pruningReport) {
+                        System.out.println(evaluator.getPruningReport());
+                    }
+                } else if (dynamicPruning.equals("bmw") &&
+                    BlockMaxWandEvaluator.isApplicable(q, model)) {
+                    BlockMaxWandEvaluator evaluator =
+                        new BlockMaxWandEvaluator((QrySopSum) q, (RetrievalModelBM25) model, collector);
+                    evaluator.evaluate();
+                    if (pruningReport) {
+                        System.out.println(evaluator.getPruningReport());
+                    }
+                } else if (! dynamicPruning.equals("none") &&
+                           MaxScoreEvaluator.isApplicable(q, model)) {
+                    MaxScoreEvaluator evaluator =
+                        new MaxScoreEvaluator((QrySopSum) q, (RetrievalModelBM25) model, collector);
+                    evaluator.evaluate();
+                    if (pruningReport) {
+                        System.out.println(evaluator.getPruningReport());
+                    }
+                } else if (! termAtATime.equals("none") &&
+                           TermAtATimeEvaluator.isApplicable(q, model) &&
+                           (termAtATime.equals("always") ||
+                            TermAtATimeEvaluator.getCost(q) < 1.0)) {
+                    TermAtATimeEvaluator evaluator =
+                        new TermAtATimeEvaluator(q, model, collector, resultDepth);
+                    evaluator.evaluate();
+                    if (pruningReport) {
+                        System.out.println(evaluator.getPruningReport());
+                    }
+                } else if (compilePlans) {
+                    QryPlan plan = QryPlan.compile(q, model);
+                    while (q.docIteratorHasMatch(model)) {
+                        int docid = q.docIteratorGetMatch();
+                        double score = logSpace ? plan.getLogScore(docid) : plan.getScore(docid);
+                        collector.collect(docid, score);
+                        q.docIteratorAdvancePast(docid);
+                    }
+                } else if (logSpace) {
+                    while (q.docIteratorHasMatch(model)) {
+                        int docid = q.docIteratorGetMatch();
+                        double score = ((QrySop) q).getLogScore(model);
+                        collector.collect(docid, score);
+                        q.docIteratorAdvancePast(docid);
+                    }
+                } else {
+                    while (q.docIteratorHasMatch(model)) {
+                        int docid = q.docIteratorGetMatch();
+                        double score = ((QrySop) q).getScore(model);
+                        collector.collect(docid, score);
+                        q.docIteratorAdvancePast(docid);
+                    }
+                }
+            }
+
+            ScoreList r = collector.getScoreList();
 
+            //  Log scores rank documents the same way; only the
+            //  results are converted back.
 
-                while (q.docIteratorHasMatch(model)) {
-                    int docid = q.docIteratorGetMatch();
-                    double score = ((QrySop) q).getScore(model);
-                    r.add(docid, score);
-                    q.docIteratorAdvancePast(docid);
+            if (logSpace) {
+                for (int i = 0; i < r.size(); i++) {
+                    r.setDocidScore(i, Math.exp(r.getDocidScore(i)));
                 }
             }
-            r.sort();
-            r.truncate(100);
             return r;
         } else
             return null;
@@ -795,6 +920,60 @@ public class QryEval {
         if(parameters.containsKey("fbExpansionQueryFile")){
             fbExpansionQueryFile = parameters.get("fbExpansionQueryFile");
         }
+        if(parameters.containsKey("streamingTerms")){
+            QryIopTerm.setStreaming(parameters.get("streamingTerms").equalsIgnoreCase("true"));
+        }
+        if(parameters.containsKey("compressInvLists")){
+            QryIop.setCompression(parameters.get("compressInvLists").equalsIgnoreCase("true"));
+        }
+        if(parameters.containsKey("dynamicPruning")){
+            dynamicPruning = parameters.get("dynamicPruning").toLowerCase();
+            if (!dynamicPruning.matches("none|maxscore|bmw")) {
+                throw new IllegalArgumentException
+                        ("dynamicPruning must be none, maxscore or bmw:  " + dynamicPruning);
+            }
+        }
+        if(parameters.containsKey("compilePlans")){
+            compilePlans = parameters.get("compilePlans").equalsIgnoreCase("true");
+        }
+        if(parameters.containsKey("lazyOperators")){
+            QryIop.setLazy(parameters.get("lazyOperators").equalsIgnoreCase("true"));
+        }
+        if(parameters.containsKey("unionHeapMinArgs")){
+            Qry.setUnionHeapMinArgs(Integer.parseInt(parameters.get("unionHeapMinArgs")));
+        }
+        if(parameters.containsKey("termAtATime")){
+            termAtATime = parameters.get("termAtATime").toLowerCase();
+            if (!termAtATime.matches("none|auto|always")) {
+                throw new IllegalArgumentException
+                        ("termAtATime must be none, auto or always:  " + termAtATime);
+            }
+        }
+        if(parameters.containsKey("scoreAtATime")){
+            scoreAtATime = parameters.get("scoreAtATime").equalsIgnoreCase("true");
+        }
+        if(parameters.containsKey("scoreAtATimePostings")){
+            scoreAtATimePostings = Long.parseLong(parameters.get("scoreAtATimePostings"));
+        }
+        if(parameters.containsKey("scoreAtATimeMs")){
+            scoreAtATimeMs = Long.parseLong(parameters.get("scoreAtATimeMs"));
+        }
+        if(parameters.containsKey("resultDepth")){
+            resultDepth = Integer.parseInt(parameters.get("resultDepth"));
+        }
+        if(parameters.containsKey("pruningReport")){
+            pruningReport = parameters.get("pruningReport").equalsIgnoreCase("true");
+        }
+        if(parameters.containsKey("statsReport")){
+            statsReport = parameters.get("statsReport").equalsIgnoreCase("true");
+        }
+        if(parameters.containsKey("denseDocLengths")){
+            Idx.setDenseDocLengths(parameters.get("denseDocLengths").equalsIgnoreCase("true"));
+        }
+        if(parameters.containsKey("invListCacheMB")){
+            long budget = Long.parseLong(parameters.get("invListCacheMB")) * 1024L * 1024L;
+            QryIopTerm.setCache(budget > 0 ? new InvListCache(budget) : null);
+        }
 
         return parameters;
     }
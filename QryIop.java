@@ -27,6 +27,13 @@ import java.util.*;
  *  The QryIop.locIterator is initialized automatically each time
  *  Qry.docIteratorHasMatch finds a match; no additional initialization
  *  is required.
+ *  </p><p>
+ *  An operator whose parent doesn't read its statistics may instead
+ *  be evaluated lazily, if it supports it (e.g., #NEAR, #SYN):  no
+ *  inverted list is built, and its docIterator finds the next match
+ *  only when it is advanced, so documents that the parent skips are
+ *  never matched.  A lazy operator implements lazyAllowed and
+ *  lazyNextMatch; the docIterator and statistics are handled here.
  */
 public abstract class QryIop extends Qry {
 
@@ -43,6 +50,17 @@ public abstract class QryIop extends Qry {
    */
   private static final int INVALID_ITERATOR_INDEX = -1;
 
+  /**
+   *  Whether materialized inverted lists are compressed after they
+   *  are evaluated.
+   */
+  private static boolean compression = false;
+
+  /**
+   *  Whether operators whose statistics aren't needed are lazy.
+   */
+  private static boolean lazy = true;
+
   /**
    *  The document field that the query operator applies to; this is
    *  inferred from query operator arguments.
@@ -52,6 +70,36 @@ public abstract class QryIop extends Qry {
   public double avg_docLen=0;
   public double ctf = 0;
 
+  /**
+   *  The collection statistics of the field, once they are requested.
+   */
+  private Idx.FieldStats fieldStats = null;
+
+  /**
+   *  The document lengths of the field, once they are requested.
+   */
+  private DocLengthStore.FieldLengths fieldLengths = null;
+
+  /**
+   *  Whether the parent of this operator reads its locations.  Only
+   *  positional operators (e.g., #NEAR, #WINDOW) read locations, so an
+   *  operator that is only scored, or only merged by non-positional
+   *  operators (e.g., #SYN) on the way to a SCORE operator, needs
+   *  just docids and tfs.  initialize sets this on each argument
+   *  before the argument is evaluated.
+   */
+  protected boolean positionsNeeded = false;
+
+  /**
+   *  Whether the parent of this operator reads its statistics (df,
+   *  ctf, idf).  Operators that produce inverted lists compute their
+   *  own statistics, and Boolean SCORE operators use none, so their
+   *  arguments may be evaluated lazily, a document at a time.
+   *  initialize sets this on each argument before the argument is
+   *  evaluated.
+   */
+  protected boolean statsNeeded = true;
+
   /**
    *  The inverted list that is produced when the query operator is
    *  initialized; use the docIterator to access this list.
@@ -68,6 +116,15 @@ public abstract class QryIop extends Qry {
    */
   private int locIteratorIndex = QryIop.INVALID_ITERATOR_INDEX;
 
+  /**
+   *  Lazy mode: the document that the docIterator points to, or
+   *  INVALID_DOCID if there are no more, and its locations.
+   */
+  private boolean lazyMode = false;
+  private int lazyDocid = Qry.INVALID_DOCID;
+  private int[] lazyPositions = null;
+  private int lazyTf = 0;
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified document.
@@ -75,12 +132,26 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvancePast (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) <= docid)) {
-      this.docIteratorIndex ++;
+    if (this.lazyMode) {
+      if ((this.lazyDocid == Qry.INVALID_DOCID) || (this.lazyDocid > docid))
+        return;
+
+      if (docid == Integer.MAX_VALUE) {
+        this.docIteratorFinish ();
+      } else {
+        this.lazyAdvanceTo (docid + 1);
+      }
+      return;
+    }
+
+    if (docid == Integer.MAX_VALUE) {
+      this.docIteratorIndex = this.invertedList.df;
+    } else {
+      this.docIteratorIndex =
+        this.invertedList.findDocid (this.docIteratorIndex, docid + 1);
     }
            
-    this.locIteratorIndex = 0;
+    this.locIteratorReset ();
   }
 
   /**
@@ -90,12 +161,16 @@ public abstract class QryIop extends Qry {
    */
   public void docIteratorAdvanceTo (int docid) {
 
-    while ((this.docIteratorIndex < this.invertedList.df) &&
-           (this.invertedList.getDocid (this.docIteratorIndex) < docid)) {
-      this.docIteratorIndex ++;
+    if (this.lazyMode) {
+      if ((this.lazyDocid != Qry.INVALID_DOCID) && (this.lazyDocid < docid))
+        this.lazyAdvanceTo (docid);
+      return;
     }
+
+    this.docIteratorIndex =
+      this.invertedList.findDocid (this.docIteratorIndex, docid);
            
-    this.locIteratorIndex = 0;
+    this.locIteratorReset ();
   }
 
   /**
@@ -103,7 +178,13 @@ public abstract class QryIop extends Qry {
    *  any possible document.
    */
   public void docIteratorFinish () {
-    this.docIteratorIndex = this.invertedList.postings.size();
+    if (this.lazyMode) {
+      this.lazyDocid = Qry.INVALID_DOCID;
+      this.lazyPositions = null;
+      return;
+    }
+
+    this.docIteratorIndex = this.invertedList.df;
   }
 
   /**
@@ -114,16 +195,48 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int docIteratorGetMatch () {
+    if (this.lazyMode)
+      return this.lazyDocid;
+
     return this.invertedList.getDocid (this.docIteratorIndex);
   }
 
   /**
-   *  Return the postings for the document that the docIterator points to
-   *  now, or throw an error if the docIterator doesn't point at a document.
-   *  @return A document posting.
+   *  Return the locations for the document that the docIterator points
+   *  to now.  The document's locations are the docIteratorGetMatchTf
+   *  entries that start at docIteratorGetMatchPositionsOffset.  The
+   *  array belongs to the inverted list and must not be modified.
+   *  @return The array that stores the document's locations.
+   */
+  public int[] docIteratorGetMatchPositions () {
+    if (this.lazyMode)
+      return this.lazyPositions;
+
+    return this.invertedList.getPositions (this.docIteratorIndex);
+  }
+
+  /**
+   *  Return the index of the first location of the document that the
+   *  docIterator points to now in the docIteratorGetMatchPositions array.
+   *  @return The offset of the document's first location.
    */
-  public InvList.DocPosting docIteratorGetMatchPosting () {
-    return this.invertedList.postings.get(docIteratorIndex);
+  public int docIteratorGetMatchPositionsOffset () {
+    if (this.lazyMode)
+      return 0;
+
+    return this.invertedList.getPositionsOffset (this.docIteratorIndex);
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    if (this.lazyMode)
+      return this.lazyTf;
+
+    return this.invertedList.getTf (this.docIteratorIndex);
   }
 
   /**
@@ -132,26 +245,63 @@ public abstract class QryIop extends Qry {
    *  @return True if the query matches a document, otherwise false.
    */
   public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.lazyMode)
+      return (this.lazyDocid != Qry.INVALID_DOCID);
+
     return (this.docIteratorIndex < this.invertedList.df);
   }
 
   /**
    *  Get the collection term frequency (ctf) associated with this
    *  query operator.  It is an error to call this method before the
-   *  object's initialize method is called.
+   *  object's initialize method is called.  A lazy operator doesn't
+   *  know it.
    *  @return The collection term frequency (ctf).
+   *  @throws IllegalStateException The operator is lazy.
    */
   public int getCtf () {
+    this.checkMaterialized ();
     return this.invertedList.ctf;
   }
 
+  /**
+   *  Get the skip index block of the inverted list that holds the
+   *  first posting at or after the docIterator whose document id is
+   *  at least docid.  The docIterator doesn't move.  A lazy operator
+   *  has no inverted list.
+   *  @param docid An internal document id.
+   *  @return The index of the block, or -1 if there is no such posting.
+   *  @throws IllegalStateException The operator is lazy.
+   */
+  public int docIteratorGetBlock (int docid) {
+    this.checkMaterialized ();
+    return this.invertedList.findBlock (this.docIteratorIndex, docid);
+  }
+
+  /**
+   *  Get the largest term frequency in any document that matches
+   *  this query operator.  Scores that grow with tf use it to bound
+   *  the score of any document.  It is an error to call this method
+   *  before the object's initialize method is called.  A lazy operator
+   *  doesn't know it.
+   *  @return The largest tf.
+   *  @throws IllegalStateException The operator is lazy.
+   */
+  public int getMaxTf () {
+    this.checkMaterialized ();
+    return this.invertedList.getMaxTf ();
+  }
+
   /**
    *  Get the document frequency (df) associated with this query
    *  operator.  It is an error to call this method before the
-   *  object's initialize method is called.
+   *  object's initialize method is called.  A lazy operator doesn't
+   *  know it.
    *  @return The document frequency (df).
+   *  @throws IllegalStateException The operator is lazy.
    */
   public int getDf () {
+    this.checkMaterialized ();
     return this.invertedList.df;
   }
 
@@ -163,6 +313,33 @@ public abstract class QryIop extends Qry {
     return this.field;
   }
 
+  /**
+   *  Get the collection statistics of the field associated with this
+   *  query operator.  They are looked up once, so scoring doesn't
+   *  repeat the lookup for each document.
+   *  @return The collection statistics of the field.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public Idx.FieldStats getFieldStats () throws IOException {
+    if (this.fieldStats == null)
+      this.fieldStats = Idx.getFieldStats (this.field);
+
+    return this.fieldStats;
+  }
+
+  /**
+   *  Get the document lengths of the field associated with this query
+   *  operator.  The handle is looked up once, so scoring doesn't look
+   *  the field up by name for each document.
+   *  @return The document lengths of the field.
+   */
+  public DocLengthStore.FieldLengths getFieldLengths () {
+    if (this.fieldLengths == null)
+      this.fieldLengths = Idx.getFieldLengths (this.field);
+
+    return this.fieldLengths;
+  }
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -170,6 +347,85 @@ public abstract class QryIop extends Qry {
    */
   protected abstract void evaluate () throws IOException;
 
+  /**
+   *  Returns true if this operator can be evaluated lazily.  Operators
+   *  that override this must also override lazyNextMatch.
+   *  @return True if the operator can be lazy.
+   */
+  protected boolean lazyAllowed () {
+    return false;
+  }
+
+  /**
+   *  Returns true if this operator is evaluated lazily.  It is set
+   *  before evaluate is called; a lazy operator's evaluate prepares
+   *  its arguments but doesn't build an inverted list.
+   *  @return True if the operator is lazy.
+   */
+  protected boolean isLazy () {
+    return this.lazyMode;
+  }
+
+  /**
+   *  Lazy mode: advance the arguments to the first document at or
+   *  after docid that the operator matches, and record its locations
+   *  with setLazyMatch.  Arguments that are already at or after docid
+   *  don't move.
+   *  @param docid An internal document id.
+   *  @return The matching document, or INVALID_DOCID if there are none.
+   *  @throws UnsupportedOperationException The operator can't be lazy.
+   */
+  protected int lazyNextMatch (int docid) {
+    throw new UnsupportedOperationException (
+      "This operator can't be evaluated lazily:  " + this);
+  }
+
+  /**
+   *  Lazy mode: record the locations of the document that
+   *  lazyNextMatch matched.  The array is read, not copied, so it
+   *  must not change until the docIterator moves.
+   *  @param positions The document's locations, from index 0.
+   *  @param tf The number of locations.
+   */
+  protected void setLazyMatch (int[] positions, int tf) {
+    this.lazyPositions = positions;
+    this.lazyTf = tf;
+  }
+
+  /**
+   *  Lazy mode: move the docIterator to the first match at or after
+   *  docid.
+   *  @param docid An internal document id.
+   */
+  private void lazyAdvanceTo (int docid) {
+    this.lazyPositions = null;
+    this.lazyTf = 0;
+    this.lazyDocid = this.lazyNextMatch (docid);
+    this.locIteratorReset ();
+  }
+
+  /**
+   *  Throw an exception if the operator is lazy, and so has no
+   *  inverted list statistics.
+   */
+  private void checkMaterialized () {
+    if (this.lazyMode) {
+      throw new IllegalStateException (
+        "A lazy operator has no inverted list statistics:  " + this);
+    }
+  }
+
+  /**
+   *  Returns true if this operator reads the locations of its
+   *  arguments.  By default an operator needs its arguments'
+   *  locations only to produce its own; positional operators
+   *  override this.
+   *  @return True if the arguments must provide locations.
+   */
+  protected boolean argPositionsNeeded () {
+    return this.positionsNeeded;
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators; this method must be called before iteration
@@ -181,13 +437,24 @@ public abstract class QryIop extends Qry {
     //  Initialize the query arguments (if any).
 
     for (Qry q_i: this.args) {
+      ((QryIop) q_i).positionsNeeded = this.argPositionsNeeded ();
+      ((QryIop) q_i).statsNeeded = false;
       ((QryIop) q_i).initialize (r);
     }
 
-    //  Evaluate the operator.
-    
+    //  Evaluate the operator.  A lazy operator finds its first match
+    //  instead of building an inverted list.
+
+    this.lazyMode = QryIop.lazy && ! this.statsNeeded && this.lazyAllowed ();
     this.evaluate ();
 
+    if (this.lazyMode) {
+      this.invertedList = null;
+      this.lazyAdvanceTo (0);
+    } else if (this.invertedList != null) {
+      this.invertedList = QryIop.compress (this.invertedList);
+    }
+
     //  Initialize the internal iterators.
 
     this.docIteratorIndex = 0;
@@ -202,17 +469,67 @@ public abstract class QryIop extends Qry {
     this.locIteratorIndex ++;
   }
 
+  /**
+   *  Choose whether materialized inverted lists are stored compressed.
+   *  Compressed lists use much less memory, and are decoded a block
+   *  at a time as they are iterated.
+   *  @param compression True to compress inverted lists.
+   */
+  public static void setCompression (boolean compression) {
+    QryIop.compression = compression;
+  }
+
+  /**
+   *  Choose whether operators whose statistics aren't needed (e.g.,
+   *  they are scored by a Boolean model, or they are arguments of
+   *  another operator) are evaluated lazily, if they support it.
+   *  @param lazy True to evaluate them lazily.
+   */
+  public static void setLazy (boolean lazy) {
+    QryIop.lazy = lazy;
+  }
+
+  /**
+   *  Compress an inverted list if compression is enabled and the list
+   *  is worth compressing.
+   *  @param list The inverted list.
+   *  @return The compressed list, or list.
+   */
+  protected static InvList compress (InvList list) {
+
+    //  Lists shorter than a block aren't worth compressing.  Lists
+    //  that are already compressed or mapped aren't on the heap.
+
+    if (QryIop.compression &&
+        (list.df >= InvList.SKIP_BLOCK_SIZE) &&
+        (list.getClass () == InvList.class)) {
+      return new InvListCompressed (list);
+    }
+
+    return list;
+  }
+
+  /**
+   *  Point the locIterator at the first location of the document that
+   *  the docIterator points to now.  Subclasses that implement their
+   *  own docIterator call this whenever the docIterator moves.
+   */
+  protected void locIteratorReset () {
+    this.locIteratorIndex = 0;
+  }
+
   /**
    *  Advance the query operator's internal iterator beyond the
    *  specified location.
    *  @param loc The location to advance beyond.
    */
   public void locIteratorAdvancePast (int loc) {
-    int tf = this.invertedList.postings.get(this.docIteratorIndex).tf;
-    Vector<Integer> positions = this.invertedList.postings.get(this.docIteratorIndex).positions;
+    int tf = this.docIteratorGetMatchTf ();
+    int[] positions = this.docIteratorGetMatchPositions ();
+    int offset = this.docIteratorGetMatchPositionsOffset ();
 
     while ((this.locIteratorIndex < tf) &&
-           (positions.get (this.locIteratorIndex) <= loc)) {
+           (positions [offset + this.locIteratorIndex] <= loc)) {
       locIteratorIndex ++;
     }
   }
@@ -222,8 +539,7 @@ public abstract class QryIop extends Qry {
    *  any possible location.
    */
   public void locIteratorFinish () {
-    this.locIteratorIndex =
-      this.invertedList.postings.get(this.docIteratorIndex).tf;
+    this.locIteratorIndex = this.docIteratorGetMatchTf ();
   }
 
   /**
@@ -234,8 +550,8 @@ public abstract class QryIop extends Qry {
    *  @return The internal id of the current document.
    */
   public int locIteratorGetMatch () {
-    Vector<Integer> locations = this.docIteratorGetMatchPosting().positions;
-    return locations.get (this.locIteratorIndex);
+    return this.docIteratorGetMatchPositions () [
+      this.docIteratorGetMatchPositionsOffset () + this.locIteratorIndex];
   }
 
   /**
@@ -244,8 +560,7 @@ public abstract class QryIop extends Qry {
    *  @return True if the iterator currently points to a location.
    */
   public boolean locIteratorHasMatch () {
-    return (this.locIteratorIndex <
-            this.invertedList.getTf (this.docIteratorIndex));
+    return (this.locIteratorIndex < this.docIteratorGetMatchTf ());
   }
 
 }
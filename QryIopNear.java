@@ -10,6 +10,13 @@ import java.util.*;
 /**
  * The Near operator for all retrieval models.  The Near operator stores
  * information about max distance between words.
+ * <p>
+ * If no parent reads the operator's statistics (e.g., it is scored by
+ * a Boolean model, or it is an argument of another positional
+ * operator), it is evaluated lazily:  its docIterator finds the next
+ * matching document only when it is advanced, so documents that the
+ * parent skips are never matched, and no inverted list is built.
+ * </p>
  */
 public class QryIopNear extends QryIop {
 
@@ -19,6 +26,11 @@ public class QryIopNear extends QryIop {
      */
     private int distance;
 
+    /**
+     * Scratch space for the locations that match the current document.
+     */
+    private int[] matchBuffer = new int[16];
+
     /**
      * constructor with distance
      * @param distance the maximum distance
@@ -27,6 +39,14 @@ public class QryIopNear extends QryIop {
         this.distance = distance;    // Default field if none is specified.
     }
 
+    /**
+     * Get the maximum distance between words.
+     * @return the distance
+     */
+    public int getDistance() {
+        return this.distance;
+    }
+
     /**
      * Find next common document id
      * @return next minimum document id
@@ -54,21 +74,30 @@ public class QryIopNear extends QryIop {
     }
 
     /**
-     * find positions of term2 when term 2 is within n distance of term 1
+     * find positions of term2 when term 2 is within n distance of term 1.
+     * Both lists are in ascending order.  The result may be written over
+     * p1, because it never gets ahead of the position of p1 being read.
      * @param p1 positions of term1
+     * @param off1 the index of term1's first position in p1
+     * @param len1 the number of positions of term1
      * @param p2 positions of term2
+     * @param off2 the index of term2's first position in p2
+     * @param len2 the number of positions of term2
      * @param n  distance n
-     * @return positions of term2 when term2 is within the n proximity of term1
+     * @param result the array that receives positions of term2 when term2
+     *   is within the n proximity of term1, from index 0
+     * @return the number of positions in result
      */
-    private List<Integer> combinePosition(List<Integer> p1, List<Integer> p2, int n) {
-        Collections.sort(p1);
-        Collections.sort(p2);
-        List<Integer> result = new ArrayList<Integer>();
-        int i = 0, j = 0;
-        while (i < p1.size() && j < p2.size()) {
-            int distance = p2.get(j) - p1.get(i);
+    private static int combinePosition(int[] p1, int off1, int len1,
+                                       int[] p2, int off2, int len2,
+                                       int n, int[] result) {
+        int count = 0;
+        int i = off1, j = off2;
+        int end1 = off1 + len1, end2 = off2 + len2;
+        while (i < end1 && j < end2) {
+            int distance = p2[j] - p1[i];
             if (distance > 0 && distance <= n) {
-                result.add(p2.get(j));
+                result[count++] = p2[j];
                 i++;
                 j++;
             } else if (distance < 0) {
@@ -77,7 +106,91 @@ public class QryIopNear extends QryIop {
                 i++;
             }
         }
-        return result;
+        return count;
+    }
+
+    /**
+     * Get the locations at which the operator matches the document
+     * that every argument's docIterator points to now.  The arguments'
+     * locations are read in place, and the matches are written to
+     * matchBuffer, which is reused for every document.
+     * @return the number of locations of the last argument that match
+     */
+    private int matchPositions() {
+        QryIop q_0 = this.getArg(0);
+        int[] p1 = q_0.docIteratorGetMatchPositions();
+        int off1 = q_0.docIteratorGetMatchPositionsOffset();
+        int len1 = q_0.docIteratorGetMatchTf();
+
+        if (args.size() == 1) {
+            this.ensureMatchBuffer(len1);
+            System.arraycopy(p1, off1, this.matchBuffer, 0, len1);
+            return len1;
+        }
+
+        for (int i = 1; i < args.size() && len1 > 0; i++) {
+            QryIop q_i = this.getArg(i);
+            int len2 = q_i.docIteratorGetMatchTf();
+            this.ensureMatchBuffer(Math.min(len1, len2));
+            len1 = combinePosition(p1, off1, len1,
+                                   q_i.docIteratorGetMatchPositions(),
+                                   q_i.docIteratorGetMatchPositionsOffset(),
+                                   len2, distance, this.matchBuffer);
+            p1 = this.matchBuffer;
+            off1 = 0;
+        }
+        return len1;
+    }
+
+    /**
+     * Make sure that matchBuffer can hold a number of locations,
+     * keeping the locations that it holds now.
+     * @param size the number of locations
+     */
+    private void ensureMatchBuffer(int size) {
+        if (this.matchBuffer.length < size) {
+            this.matchBuffer = Arrays.copyOf(this.matchBuffer,
+                                             Math.max(size, 2 * this.matchBuffer.length));
+        }
+    }
+
+    /**
+     * This operator can be evaluated lazily.
+     * @return true
+     */
+    protected boolean lazyAllowed() {
+        return true;
+    }
+
+    /**
+     * Lazy mode: find the first match at or after a document.
+     * @param docid The document's internal document id
+     * @return The matching document, or INVALID_DOCID if there are none.
+     */
+    protected int lazyNextMatch(int docid) {
+        if (args.size() == 0) return Qry.INVALID_DOCID;
+
+        this.getArg(0).docIteratorAdvanceTo(docid);
+
+        while (this.getArg(0).docIteratorHasMatch(null)) {
+            int com_docid = findNextDocid();
+            if (com_docid == Qry.INVALID_DOCID) break;
+            int count = matchPositions();
+            if (count > 0) {
+                this.setLazyMatch(this.matchBuffer, count);
+                return com_docid;
+            }
+            this.getArg(0).docIteratorAdvancePast(com_docid);
+        }
+        return Qry.INVALID_DOCID;
+    }
+
+    /**
+     * This operator reads the locations of its arguments.
+     * @return true
+     */
+    protected boolean argPositionsNeeded() {
+        return true;
     }
 
     /**
@@ -87,7 +200,9 @@ public class QryIopNear extends QryIop {
      */
 
     protected void evaluate () throws IOException {
-        this.invertedList = new InvList(this.getField());
+        if (this.isLazy()) return;
+
+        this.invertedList = new InvList(this.getField(), this.positionsNeeded);
 
         if (args.size() == 0) return;
 
@@ -96,30 +211,18 @@ public class QryIopNear extends QryIop {
             int com_docid = findNextDocid();
 //            System.out.println(com_docid);
             if(com_docid == Qry.INVALID_DOCID) break;
-            List<Integer> positions = new ArrayList<Integer>();
-            List<Integer> loc = this.getArg(0).docIteratorGetMatchPosting().positions;
-            Qry p1 = this.getArg(0);
-            Qry p2 = p1;
-            List<Integer> pos_p1 = ((QryIop) p1).docIteratorGetMatchPosting().positions;
-            for (int i = 1; i < args.size(); i++) {
-                p2 = this.getArg(i);
-                List<Integer> pos_p2 = ((QryIop) p2).docIteratorGetMatchPosting().positions;
-                loc = combinePosition(pos_p1, pos_p2, distance);
-                p1 = p2;
-                pos_p1 = loc;
-            }
-            if (loc.size() > 0) {
-                positions.addAll(loc);
-                this.invertedList.appendPosting(com_docid, positions);
+            int count = matchPositions();
+            if (count > 0) {
+                this.invertedList.appendPosting(com_docid, this.matchBuffer, count);
             }
             this.getArg(0).docIteratorAdvancePast(com_docid);
             if(!this.getArg(0).docIteratorHasMatch(null)) break;
         }
         double df = this.invertedList.df;
-        double docNum = Idx.getDocCount(this.field);
+        double docNum = this.getFieldStats().docCount;
         double pre_idf = Math.log((docNum-df+0.5)/(df+0.5));
         this.idf = Math.max(0,pre_idf);// to eliminate the case that idf will be negative when df > docNum/2
-        this.avg_docLen = (double)Idx.getSumOfFieldLengths(this.field)/Idx.getDocCount(this.field);
+        this.avg_docLen = this.getFieldStats().averageLength;
     }
 
 }
@@ -0,0 +1,86 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+import java.io.*;
+
+/**
+ *  A #NEAR/1 operator over two terms whose inverted list was
+ *  precomputed by BuildPhraseCache.  optimizeQuery substitutes it for
+ *  '#NEAR/1 (a b)' when the index's phrase cache has the pair, so the
+ *  two terms' positional lists aren't read and intersected.  The list
+ *  is the one that QryIopNear produces, and the statistics are
+ *  computed as QryIopNear computes them, so results don't change.
+ */
+public class QryIopPhrase extends QryIop {
+
+  private String term1;
+  private String term2;
+
+  /**
+   *  The phrase matches in the specified field.
+   *  @param term1 The first processed term.
+   *  @param term2 The second processed term.
+   *  @param fieldString A field string.
+   */
+  public QryIopPhrase (String term1, String term2, String fieldString) {
+    this.term1 = term1;
+    this.term2 = term2;
+    this.field = fieldString;
+    this.setDisplayName ("#NEAR/1");
+  }
+
+  /**
+   *  Get the phrase operator that can replace a #NEAR operator.
+   *  @param q A #NEAR operator.
+   *  @return The phrase operator, or null if q isn't a #NEAR/1 of two
+   *  terms or the index doesn't have their list.
+   */
+  public static QryIopPhrase rewrite (QryIopNear q) {
+
+    if ((q.getDistance () != 1) ||
+        (q.args.size () != 2) ||
+        ! (q.args.get (0) instanceof QryIopTerm) ||
+        ! (q.args.get (1) instanceof QryIopTerm))
+      return null;
+
+    String term1 = ((QryIopTerm) q.args.get (0)).getTerm ();
+    String term2 = ((QryIopTerm) q.args.get (1)).getTerm ();
+
+    if (Idx.getCachedPhraseInvList (term1, term2, q.getField ()) == null)
+      return null;
+
+    return new QryIopPhrase (term1, term2, q.getField ());
+  }
+
+  /**
+   *  Evaluate the query operator; the result is an internal inverted
+   *  list that may be accessed via the internal iterators.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  protected void evaluate () throws IOException {
+
+    this.invertedList =
+      Idx.getCachedPhraseInvList (this.term1, this.term2, this.field);
+
+    if (this.invertedList == null) {
+      throw new IllegalStateException (
+        "The phrase cache doesn't have " + this + ".");
+    }
+
+    double df = this.invertedList.df;
+    double docNum = this.getFieldStats ().docCount;
+    double pre_idf = Math.log ((docNum - df + 0.5) / (df + 0.5));
+    this.idf = Math.max (0, pre_idf);
+    this.avg_docLen = this.getFieldStats ().averageLength;
+  }
+
+  /**
+   *  Get a string version of this query operator.
+   *  @return The string version of this query operator.
+   */
+  public String toString () {
+    return (this.getDisplayName () + "( " +
+            this.term1 + "." + this.field + " " +
+            this.term2 + "." + this.field + " )");
+  }
+}
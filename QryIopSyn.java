@@ -3,13 +3,44 @@
  *  @author Xinna Cai
  */
 import java.io.*;
-import java.util.*;
 
 /**
  *  The SYN operator for all retrieval models.
+ *  <p>
+ *  The arguments' docids are merged with a heap, and the locations of
+ *  a document are merged from the arguments' sorted locations with
+ *  another heap, so each posting costs O(log k) for k arguments.  If
+ *  no parent reads the operator's statistics (e.g., it is scored by a
+ *  Boolean model, or it is an argument of a positional operator), it
+ *  is evaluated lazily:  its docIterator merges the next posting only
+ *  when it is advanced, and no inverted list is built.
+ *  </p>
  */
 public class QryIopSyn extends QryIop {
 
+  /**
+   *  The arguments that have more documents, keyed by docid.
+   */
+  private ArgHeap docHeap = null;
+
+  /**
+   *  Scratch space for merging the locations of a document:  the
+   *  arguments that match it, their locations and the next one of
+   *  each, and a heap of them keyed by their next location.
+   */
+  private ArgHeap positionsHeap = null;
+  private int[] matched;
+  private int[][] argPositions;
+  private int[] pointers;
+  private int[] limits;
+
+  /**
+   *  The posting that was merged last:  its locations (if they are
+   *  needed) and tf.
+   */
+  private int[] positions = new int[16];
+  private int tf = 0;
+
   /**
    *  Evaluate the query operator; the result is an internal inverted
    *  list that may be accessed via the internal iterators.
@@ -17,63 +48,244 @@ public class QryIopSyn extends QryIop {
    */
   protected void evaluate () throws IOException {
 
-    //  Create an empty inverted list.  If there are no query arguments,
-    //  that's the final result.
+    //  If there are no query arguments, the result is an empty
+    //  inverted list.
+
+    int size = this.args.size ();
+
+    if ((size == 0) && ! this.isLazy ()) {
+      this.invertedList = new InvList (this.getField(), this.positionsNeeded);
+      return;
+    }
+
+    this.docHeap = new ArgHeap (size);
+    this.positionsHeap = new ArgHeap (size);
+    this.matched = new int[size];
+    this.argPositions = new int[size][];
+    this.pointers = new int[size];
+    this.limits = new int[size];
 
-      this.invertedList = new InvList (this.getField());
+    for (int i = 0; i < size; i++) {
+      Qry q_i = this.args.get (i);
 
-      if (args.size () == 0) {
-        return;
+      if (q_i.docIteratorHasMatch (null))
+        this.docHeap.add (i, q_i.docIteratorGetMatch ());
     }
 
+    if (this.isLazy ())
+      return;
+
+    this.invertedList = new InvList (this.getField(), this.positionsNeeded);
+
     //  Each pass of the loop adds 1 document to result inverted list
     //  until all of the argument inverted lists are depleted.
 
     while (true) {
+      int docid = this.mergeNextPosting ();
 
-      //  Find the minimum next document id.  If there is none, we're done.
+      if (docid == Qry.INVALID_DOCID)
+        break;				// All docids have been processed.  Done.
+
+      if (this.positionsNeeded) {
+        this.invertedList.appendPosting (docid, this.positions, this.tf);
+      } else {
+        this.invertedList.appendPosting (docid, this.tf);
+      }
+    }
 
-      int minDocid = Qry.INVALID_DOCID;
+    double df = this.invertedList.df;
+    double docNum = this.getFieldStats().docCount;
+    double pre_idf = Math.log((docNum-df+0.5)/(df+0.5));
+    this.idf = Math.max(0,pre_idf);// to eliminate the case that idf will be negative when df > docNum/2
+    this.avg_docLen = this.getFieldStats().averageLength;
+  }
+
+  /**
+   *  Merge the posting of the smallest docid that an argument points
+   *  to into positions and tf, and advance those arguments past it.
+   *  Note:  This implementation assumes that a location will not
+   *  appear in two or more arguments.  #SYN (apple apple) would
+   *  repeat it.
+   *  @return The posting's docid, or INVALID_DOCID if there are none.
+   */
+  private int mergeNextPosting () {
+
+    if (this.docHeap.isEmpty ())
+      return Qry.INVALID_DOCID;
+
+    //  Find the arguments that match the minimum docid.  They leave
+    //  the heap in argument order.
+
+    int minDocid = this.docHeap.topKey ();
+
+    this.tf = 0;
+
+    //  If no parent reads locations, the posting is just the sum of
+    //  the arguments' tfs, so each argument can be advanced as soon
+    //  as its tf is read.
+
+    if (! this.positionsNeeded) {
+      while (! this.docHeap.isEmpty () && (this.docHeap.topKey () == minDocid)) {
+        Qry q_i = this.args.get (this.docHeap.topArg ());
+
+        this.tf += ((QryIop) q_i).docIteratorGetMatchTf ();
+        q_i.docIteratorAdvancePast (minDocid);
 
-      for (Qry q_i: this.args) {
         if (q_i.docIteratorHasMatch (null)) {
-          int q_iDocid = q_i.docIteratorGetMatch ();
-          
-          if ((minDocid > q_iDocid) ||
-              (minDocid == Qry.INVALID_DOCID)) {
-            minDocid = q_iDocid;
-          }
+          this.docHeap.replaceTopKey (q_i.docIteratorGetMatch ());
+        } else {
+          this.docHeap.pop ();
         }
       }
 
-      if (minDocid == Qry.INVALID_DOCID)
-        break;				// All docids have been processed.  Done.
-      
-      //  Create a new posting that is the union of the posting lists
-      //  that match the minDocid.  Save it.
-      //  Note:  This implementation assumes that a location will not appear
-      //  in two or more arguments.  #SYN (apple apple) would break it.
-
-      List<Integer> positions = new ArrayList<Integer>();
-
-      for (Qry q_i: this.args) {
-        if (q_i.docIteratorHasMatch (null) &&
-            (q_i.docIteratorGetMatch () == minDocid)) {
-          Vector<Integer> locations_i =
-            ((QryIop) q_i).docIteratorGetMatchPosting().positions;
-	  positions.addAll (locations_i);
-          q_i.docIteratorAdvancePast (minDocid);
-	}
+      return minDocid;
+    }
+
+    //  Otherwise the locations of every argument that matches are
+    //  needed at once.  They are already sorted, so they are merged,
+    //  not sorted.
+
+    int m = 0;
+
+    while (! this.docHeap.isEmpty () && (this.docHeap.topKey () == minDocid)) {
+      this.matched[m++] = this.docHeap.topArg ();
+      this.docHeap.pop ();
+    }
+
+    if (m == 1) {
+      QryIop q_i = this.getArg (this.matched[0]);
+
+      this.tf = q_i.docIteratorGetMatchTf ();
+      this.ensurePositions (this.tf);
+      System.arraycopy (q_i.docIteratorGetMatchPositions (),
+                        q_i.docIteratorGetMatchPositionsOffset (),
+                        this.positions, 0, this.tf);
+    } else {
+      for (int j = 0; j < m; j++) {
+        QryIop q_i = this.getArg (this.matched[j]);
+
+        this.argPositions[j] = q_i.docIteratorGetMatchPositions ();
+        this.pointers[j] = q_i.docIteratorGetMatchPositionsOffset ();
+        this.limits[j] = this.pointers[j] + q_i.docIteratorGetMatchTf ();
+        this.tf += q_i.docIteratorGetMatchTf ();
       }
 
-      Collections.sort (positions);
-      this.invertedList.appendPosting (minDocid, positions);
+      this.ensurePositions (this.tf);
+
+      if (m == 2) {
+        this.mergePositions2 ();
+      } else {
+        this.mergePositionsK (m);
+      }
+    }
+
+    //  Advance the arguments and put the ones that have more
+    //  documents back in the heap.
+
+    for (int j = 0; j < m; j++) {
+      Qry q_i = this.args.get (this.matched[j]);
+
+      q_i.docIteratorAdvancePast (minDocid);
+
+      if (q_i.docIteratorHasMatch (null))
+        this.docHeap.add (this.matched[j], q_i.docIteratorGetMatch ());
+    }
+
+    return minDocid;
+  }
+
+  /**
+   *  Merge the sorted locations of two arguments into positions.
+   *  Two arguments are common enough to avoid the heap for.
+   */
+  private void mergePositions2 () {
+
+    int[] p0 = this.argPositions[0];
+    int[] p1 = this.argPositions[1];
+    int i0 = this.pointers[0], end0 = this.limits[0];
+    int i1 = this.pointers[1], end1 = this.limits[1];
+    int count = 0;
+
+    while ((i0 < end0) && (i1 < end1)) {
+      this.positions[count++] = (p0[i0] <= p1[i1]) ? p0[i0++] : p1[i1++];
+    }
+
+    while (i0 < end0)
+      this.positions[count++] = p0[i0++];
+
+    while (i1 < end1)
+      this.positions[count++] = p1[i1++];
+  }
+
+  /**
+   *  Merge the sorted locations of m arguments into positions with a
+   *  heap of the arguments keyed by their next location.
+   *  @param m The number of arguments.
+   */
+  private void mergePositionsK (int m) {
+
+    this.positionsHeap.clear ();
+
+    for (int j = 0; j < m; j++) {
+      if (this.pointers[j] < this.limits[j])
+        this.positionsHeap.add (j, this.argPositions[j][this.pointers[j]]);
+    }
+
+    for (int count = 0; count < this.tf; count++) {
+      int j = this.positionsHeap.topArg ();
+
+      this.positions[count] = this.positionsHeap.topKey ();
+
+      if (++this.pointers[j] < this.limits[j]) {
+        this.positionsHeap.replaceTopKey (this.argPositions[j][this.pointers[j]]);
+      } else {
+        this.positionsHeap.pop ();
+      }
+    }
+  }
+
+  /**
+   *  Make sure that positions can hold a number of locations.
+   *  @param size The number of locations.
+   */
+  private void ensurePositions (int size) {
+    if (this.positions.length < size) {
+      this.positions = new int[Math.max (size, 2 * this.positions.length)];
     }
-    double df = this.invertedList.df;
-    double docNum = Idx.getDocCount(this.field);
-    double pre_idf = Math.log((docNum-df+0.5)/(df+0.5));
-    this.idf = Math.max(0,pre_idf);// to eliminate the case that idf will be negative when df > docNum/2
-    this.avg_docLen = (double)Idx.getSumOfFieldLengths(this.field)/Idx.getDocCount(this.field);
   }
 
+  /**
+   *  This operator can be evaluated lazily.
+   *  @return true
+   */
+  protected boolean lazyAllowed () {
+    return true;
+  }
+
+  /**
+   *  Lazy mode: move the arguments that the heap says are before a
+   *  document, then merge the next posting.
+   *  @param docid An internal document id.
+   *  @return The merged posting's docid, or INVALID_DOCID if there
+   *  are none.
+   */
+  protected int lazyNextMatch (int docid) {
+
+    while (! this.docHeap.isEmpty () && (this.docHeap.topKey () < docid)) {
+      Qry q_i = this.args.get (this.docHeap.topArg ());
+
+      q_i.docIteratorAdvanceTo (docid);
+
+      if (q_i.docIteratorHasMatch (null)) {
+        this.docHeap.replaceTopKey (q_i.docIteratorGetMatch ());
+      } else {
+        this.docHeap.pop ();
+      }
+    }
+
+    int minDocid = this.mergeNextPosting ();
+
+    this.setLazyMatch (this.positions, this.tf);
+    return minDocid;
+  }
 }
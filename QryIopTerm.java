@@ -4,18 +4,66 @@
 import java.io.*;
 import java.util.*;
 
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.*;
+
 /**
  *  The TERM operator for all retrieval models.  The TERM operator stores
  *  information about a query term, for example "apple" in the query
  *  "#AND (apple pie).  Although it may seem odd to use a query
  *  operator to store a term, doing so makes it easy to build
  *  structured queries with nested query operators.
- *
+ *  <p>
+ *  By default the term's inverted list is materialized when the
+ *  operator is initialized.  In streaming mode the docIterator and
+ *  locIterator delegate to Lucene's postings enum instead, so the
+ *  list is decoded only as far as the query reads it, and documents
+ *  that the query skips are never decoded.  The term's df and ctf
+ *  come from the index statistics in streaming mode.
+ *  <p>
+ *  In both modes, locations are read from the index only if a
+ *  positional operator above the term needs them.  Terms that are in
+ *  the index's posting cache are served from it instead.  If an
+ *  InvListCache is set, materialized lists are shared across queries.
  */
 public class QryIopTerm extends QryIop {
 
+  /**
+   *  Whether terms iterate over Lucene's postings directly instead of
+   *  materializing an inverted list.
+   */
+  private static boolean streaming = false;
+
+  /**
+   *  The inverted lists that are shared across queries, or null.
+   */
+  private static InvListCache cache = null;
+
   private String term;
 
+  /**
+   *  Whether this term streams its postings even if streaming mode is
+   *  off, because its evaluator reads only a few of its documents.
+   */
+  private boolean streamed = false;
+
+  /**
+   *  Streaming mode: the Lucene postings enum, the document it points
+   *  to now, and the statistics from the index.
+   */
+  private DocsEnum postings = null;
+  private int postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+  private int postingsDf = 0;
+  private int postingsCtf = 0;
+
+  /**
+   *  Streaming mode: the locations of the current document are
+   *  decoded into this buffer the first time that they are requested.
+   */
+  private int[] positions = new int[16];
+  private int positionsDocid = Qry.INVALID_DOCID;
+
   /**
    *  The term is assumed to match the body field.
    *  @param termString A term string.
@@ -39,21 +87,329 @@ public class QryIopTerm extends QryIop {
     this.avg_docLen=0;
   }
 
+  /**
+   *  Choose whether terms stream their postings from the index or
+   *  materialize an inverted list.
+   *  @param streaming True to stream postings from the index.
+   */
+  public static void setStreaming (boolean streaming) {
+    QryIopTerm.streaming = streaming;
+  }
+
+  /**
+   *  Choose whether this term streams its postings from the index even
+   *  if streaming mode is off.  It must be called before the term is
+   *  initialized.
+   *  @param streamed True to stream this term's postings.
+   */
+  public void setStreamed (boolean streamed) {
+    this.streamed = streamed;
+  }
+
+  /**
+   *  Set the cache that shares materialized inverted lists across
+   *  queries.  Lists aren't materialized in streaming mode, so the
+   *  cache isn't used then.
+   *  @param cache The cache, or null to read every list from the index.
+   */
+  public static void setCache (InvListCache cache) {
+    QryIopTerm.cache = cache;
+  }
+
+  /**
+   *  Get the cache that shares inverted lists across queries.
+   *  @return The cache, or null if there is none.
+   */
+  public static InvListCache getCache () {
+    return QryIopTerm.cache;
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  specified document.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvancePast (int docid) {
+    if (this.postings == null) {
+      super.docIteratorAdvancePast (docid);
+      return;
+    }
+
+    try {
+      if (this.postingsDocid < docid) {
+        this.postingsDocid = this.postings.advance (docid + 1);
+      } else if (this.postingsDocid == docid) {
+        this.postingsDocid = this.postings.nextDoc ();
+      }
+      this.locIteratorReset ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the postings of " + this, ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator to the specified
+   *  document if it exists, or beyond if it doesn't.
+   *  @param docid The document's internal document id
+   */
+  public void docIteratorAdvanceTo (int docid) {
+    if (this.postings == null) {
+      super.docIteratorAdvanceTo (docid);
+      return;
+    }
+
+    try {
+      if (this.postingsDocid < docid) {
+        this.postingsDocid = this.postings.advance (docid);
+        this.locIteratorReset ();
+      }
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the postings of " + this, ex);
+    }
+  }
+
+  /**
+   *  Advance the query operator's internal iterator beyond the
+   *  any possible document.
+   */
+  public void docIteratorFinish () {
+    if (this.postings == null) {
+      super.docIteratorFinish ();
+    } else {
+      this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+    }
+  }
+
+  /**
+   *  Return the id of the document that the query operator's internal
+   *  iterator points to now.
+   *  @return The internal id of the current document.
+   */
+  public int docIteratorGetMatch () {
+    if (this.postings == null) {
+      return super.docIteratorGetMatch ();
+    }
+
+    return this.postingsDocid;
+  }
+
+  /**
+   *  Return the locations for the document that the docIterator points
+   *  to now.
+   *  @return The array that stores the document's locations.
+   */
+  public int[] docIteratorGetMatchPositions () {
+    if (this.postings == null) {
+      return super.docIteratorGetMatchPositions ();
+    }
+
+    //  Lucene delivers each document's locations once, so they are
+    //  decoded into a buffer the first time that they are needed.
+
+    if (! this.positionsNeeded) {
+      throw new IllegalStateException ("Locations of " + this + " were not read.");
+    }
+
+    if (this.positionsDocid != this.postingsDocid) {
+      try {
+        int tf = this.postings.freq ();
+
+        if (tf > this.positions.length) {
+          this.positions = new int[Math.max (tf, this.positions.length * 2)];
+        }
+
+        for (int j = 0; j < tf; j++) {
+          this.positions[j] = ((DocsAndPositionsEnum) this.postings).nextPosition ();
+        }
+      } catch (IOException ex) {
+        throw new IllegalStateException ("Error reading the postings of " + this, ex);
+      }
+
+      this.positionsDocid = this.postingsDocid;
+    }
+
+    return this.positions;
+  }
+
+  /**
+   *  Return the index of the first location of the document that the
+   *  docIterator points to now in the docIteratorGetMatchPositions array.
+   *  @return The offset of the document's first location.
+   */
+  public int docIteratorGetMatchPositionsOffset () {
+    if (this.postings == null) {
+      return super.docIteratorGetMatchPositionsOffset ();
+    }
+
+    return 0;
+  }
+
+  /**
+   *  Return the term frequency of the document that the docIterator
+   *  points to now.
+   *  @return The document's term frequency.
+   */
+  public int docIteratorGetMatchTf () {
+    if (this.postings == null) {
+      return super.docIteratorGetMatchTf ();
+    }
+
+    try {
+      return this.postings.freq ();
+    } catch (IOException ex) {
+      throw new IllegalStateException ("Error reading the postings of " + this, ex);
+    }
+  }
+
+  /**
+   *  Indicates whether the query has a matching document.
+   *  @param r A retrieval model (that is ignored - it can be null)
+   *  @return True if the query matches a document, otherwise false.
+   */
+  public boolean docIteratorHasMatch (RetrievalModel r) {
+    if (this.postings == null) {
+      return super.docIteratorHasMatch (r);
+    }
+
+    return (this.postingsDocid != DocIdSetIterator.NO_MORE_DOCS);
+  }
+
+  /**
+   *  Get the collection term frequency (ctf) associated with this
+   *  query operator.
+   *  @return The collection term frequency (ctf).
+   */
+  public int getCtf () {
+    if (this.invertedList == null) {
+      return this.postingsCtf;
+    }
+
+    return super.getCtf ();
+  }
+
+  /**
+   *  Get the document frequency (df) associated with this query
+   *  operator.
+   *  @return The document frequency (df).
+   */
+  public int getDf () {
+    if (this.invertedList == null) {
+      return this.postingsDf;
+    }
+
+    return super.getDf ();
+  }
+
+  /**
+   *  Get the term string of this query operator.
+   *  @return The processed (stemmed, lower-cased, etc) term string.
+   */
+  public String getTerm () {
+    return this.term;
+  }
+
+  /**
+   *  Get the largest tf in the term's inverted list.  In streaming
+   *  mode the list isn't read ahead, so the tf isn't bounded.
+   *  @return The largest tf, or Integer.MAX_VALUE in streaming mode.
+   */
+  public int getMaxTf () {
+    if (this.invertedList == null) {
+      return Integer.MAX_VALUE;
+    }
 
+    return super.getMaxTf ();
+  }
 
   /**
    *  Evaluate the query operator; the result is an internal inverted
-   *  list that may be accessed via the internal iterators.
+   *  list that may be accessed via the internal iterators.  In
+   *  streaming mode, only the Lucene postings enum is opened.
    *  @throws IOException Error accessing the Lucene index.
    */
   protected void evaluate () throws IOException {
-    this.invertedList = new InvList(this.term, this.field);
-    double df = this.invertedList.df;
-    double docNum = Idx.getNumDocs();
+    double df;
+
+    //  Lists in the posting cache are already decoded, so they are
+    //  used even in streaming mode.
+
+    InvList cached = Idx.getCachedInvList (this.term, this.field);
+
+    if (cached != null) {
+      this.invertedList = cached;
+      this.postings = null;
+      df = this.invertedList.df;
+    } else if (QryIopTerm.streaming || this.streamed) {
+      this.openPostings ();
+      df = this.postingsDf;
+    } else if (QryIopTerm.cache != null) {
+      this.invertedList =
+        QryIopTerm.cache.get (this.term, this.field, this.positionsNeeded);
+
+      //  Lists are cached in the form that QryIop.initialize would
+      //  give them, so a hit isn't compressed again.
+
+      if (this.invertedList == null) {
+        this.invertedList = QryIop.compress (
+          new InvList (this.term, this.field, this.positionsNeeded));
+        QryIopTerm.cache.put (this.term, this.field, this.invertedList);
+      }
+
+      df = this.invertedList.df;
+    } else {
+      this.invertedList = new InvList(this.term, this.field, this.positionsNeeded);
+      df = this.invertedList.df;
+    }
+
+    double docNum = this.getFieldStats().numDocs;
     double pre_idf = Math.log((docNum-df+0.5)/(df+0.5));
     this.idf = Math.max(0,pre_idf);// to eliminate the case that idf will be negative when df > docNum/2
-    this.avg_docLen = (double)Idx.getSumOfFieldLengths(this.field)/Idx.getDocCount(this.field);
+    this.avg_docLen = this.getFieldStats().averageLength;
+
+  }
+
+  /**
+   *  Open the term's Lucene postings enum and position it on the
+   *  first document.  The df and ctf are the index statistics, which
+   *  include documents that were deleted but not yet merged away.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void openPostings () throws IOException {
+    BytesRef termBytes = new BytesRef (this.term);
+    Term t = new Term (this.field, termBytes);
+
+    this.invertedList = null;
+    this.postingsDf = Idx.INDEXREADER.docFreq (t);
+    this.postingsCtf = (int) Idx.INDEXREADER.totalTermFreq (t);
+    this.postingsDocid = DocIdSetIterator.NO_MORE_DOCS;
+    this.positionsDocid = Qry.INVALID_DOCID;
+
+    //  If no parent reads locations, a docs-and-freqs enum avoids
+    //  decoding them.
+
+    if (this.postingsDf > 0) {
+      if (this.positionsNeeded) {
+        this.postings =
+          MultiFields.getTermPositionsEnum (Idx.INDEXREADER,
+                                            MultiFields.getLiveDocs (Idx.INDEXREADER),
+                                            this.field, termBytes);
+      } else {
+        this.postings =
+          MultiFields.getTermDocsEnum (Idx.INDEXREADER,
+                                       MultiFields.getLiveDocs (Idx.INDEXREADER),
+                                       this.field, termBytes, DocsEnum.FLAG_FREQS);
+      }
+    }
+
+    //  An empty list is represented by an exhausted empty InvList, so
+    //  that the iterators don't need another special case.
+
+    if (this.postings == null) {
+      this.invertedList = new InvList (this.field);
+      return;
+    }
 
+    this.postingsDocid = this.postings.nextDoc ();
   }
 
   /**
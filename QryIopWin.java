@@ -1,7 +1,5 @@
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Created by xinnacai on 3/13/16.
@@ -41,19 +39,11 @@ public class QryIopWin extends QryIop{
     }
 
     /**
-     * This class represents the result state of comparing positions of each
-     * argument in its own inverted list.
+     * This operator reads the locations of its arguments.
+     * @return true
      */
-    private class Result {
-        int max;
-        int min;
-        int minIndex;
-
-        Result(){
-            max = Integer.MIN_VALUE;
-            min =Integer.MAX_VALUE;
-            minIndex =0;
-        }
+    protected boolean argPositionsNeeded() {
+        return true;
     }
 
     /**
@@ -62,41 +52,50 @@ public class QryIopWin extends QryIop{
      *  @throws IOException Error accessing the Lucene index.
      */
     protected void evaluate () throws IOException {
-        this.invertedList = new InvList(this.getField());
+        this.invertedList = new InvList(this.getField(), this.positionsNeeded);
 
         if (args.size() == 0) return;
         int size = this.args.size();
 
+        int[] merged_position = new int[16];
+        int[] pointer = new int[size];
+        int[] limit = new int[size];
+        int[][] poslist = new int[size][];
+        ArgHeap heap = new ArgHeap(size);
+
         while (true) {
             int com_docid = findNextDocid();
 //            System.out.println(com_docid);
             if (com_docid == Qry.INVALID_DOCID) break;
-            List<Integer> merged_position = new ArrayList<Integer>();
-            int[] pointer = new int[size];
-            Result res = new Result();
-            for (int i = 0; i < size; i++) {
-                pointer[i] = 0;
-            }
-            List<List<Integer>> poslist = new ArrayList<List<Integer>>();
             for (int i = 0; i < size; i++) {
-                List<Integer> position = this.getArg(i).docIteratorGetMatchPosting().positions;
-                poslist.add(position);
+                QryIop q_i = this.getArg(i);
+                poslist[i] = q_i.docIteratorGetMatchPositions();
+                pointer[i] = q_i.docIteratorGetMatchPositionsOffset();
+                limit[i] = pointer[i] + q_i.docIteratorGetMatchTf();
             }
-            res = advanceNext(pointer, poslist, size);
-            while(res!=null){
-                if (res.max - res.min+1 <= this.distance) {
-                    merged_position.add(res.min);
+            int count = 0;
+            int max = fillHeap(heap, pointer, limit, poslist, size);
+            while (max != Integer.MIN_VALUE) {
+                int min = heap.topKey();
+                if (max - min + 1 <= this.distance) {
+                    if (count == merged_position.length) {
+                        merged_position = Arrays.copyOf(merged_position, count * 2);
+                    }
+                    merged_position[count++] = min;
                     for(int i=0;i<size;i++){
                         pointer[i]++;
                     }
-                    res = advanceNext(pointer,poslist,size);
+                    max = fillHeap(heap, pointer, limit, poslist, size);
                 } else {
-                    pointer[res.minIndex]++;
-                    res = advanceNext(pointer,poslist,size);
+                    int i = heap.topArg();
+                    if (++pointer[i] == limit[i]) break;
+                    int next = poslist[i][pointer[i]];
+                    heap.replaceTopKey(next);
+                    if (next > max) max = next;
                 }
             }
-            if(merged_position.size()>=1){
-                this.invertedList.appendPosting(com_docid, merged_position);
+            if(count>=1){
+                this.invertedList.appendPosting(com_docid, merged_position, count);
             }
             this.getArg(0).docIteratorAdvancePast(com_docid);
             if(!this.getArg(0).docIteratorHasMatch(null)) break;
@@ -106,33 +105,37 @@ public class QryIopWin extends QryIop{
 //        if (!this.getArg(0).docIteratorHasMatch(null)) return;
 
             double df = this.invertedList.df;
-            double docNum = (double)Idx.getDocCount(this.field);
+            double docNum = (double)this.getFieldStats().docCount;
             double pre_idf = Math.log((docNum - df + 0.5) / (df + 0.5));
             this.idf = Math.max(0, pre_idf);// to eliminate the case that idf will be negative when df > docNum/2
-            this.avg_docLen = (double) Idx.getSumOfFieldLengths(this.field) / Idx.getDocCount(this.field);
+            this.avg_docLen = this.getFieldStats().averageLength;
 
     }
 
     /**
-     * This method compare current positions of each argument in its inverted list
+     * This method puts the current position of each argument in a heap,
+     * so that the argument with the smallest position is on top (the
+     * first one, if there are ties).  A window is swept over the
+     * positions by advancing the top argument, so each step costs
+     * O(log size) and allocates nothing.
+     * @param heap the heap, which is cleared first
      * @param pointer the state of each current positions of each argument
-     * @param poslist it stores all the position list of all arguments
+     * @param limit the end of the positions of each argument
+     * @param poslist it stores all the position arrays of all arguments
      * @param size the number of arguments
-     * @return the result of comparing positions
+     * @return the largest current position, or Integer.MIN_VALUE if an
+     * argument has no more positions
      */
-
-    private Result advanceNext(int[] pointer,List<List<Integer>> poslist, int size){
-        Result res = new Result();
+    private static int fillHeap(ArgHeap heap, int[] pointer, int[] limit,
+                                int[][] poslist, int size){
+        heap.clear();
+        int max = Integer.MIN_VALUE;
         for(int i =0;i<size;i++){
-                List<Integer> position = poslist.get(i);
-                if(pointer[i] == position.size()) return null;
-                int temp = position.get(pointer[i]);
-                if(temp > res.max) res.max = temp;
-                if(temp < res.min){
-                    res.min = temp;
-                    res.minIndex = i;
-                }
-            }
-        return res;
+            if(pointer[i] >= limit[i]) return Integer.MIN_VALUE;
+            int temp = poslist[i][pointer[i]];
+            if(temp > max) max = temp;
+            heap.add(i, temp);
+        }
+        return max;
     }
 }
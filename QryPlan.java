@@ -0,0 +1,463 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  A scoring plan for an initialized query.  QrySop.getScore decides
+ *  how to score each document by testing the retrieval model with
+ *  instanceof, and QrySopScore reads the model's parameters through
+ *  getters, for every document.  compile does that work once per
+ *  query:  it builds a tree of plan nodes that mirrors the query tree,
+ *  with one node class for each operator and retrieval model, and
+ *  with the model parameters and the query's collection statistics
+ *  bound when the node is built.
+ *  <p>
+ *  The query tree still iterates over the documents; the plan only
+ *  scores the document that the query matched.  Plan nodes compute
+ *  scores with the same operations in the same order as the query
+ *  operators, so scores are identical.  Operators and models that
+ *  don't have a plan node (e.g., the Boolean models) are scored by
+ *  their query operators.
+ *  </p>
+ */
+public abstract class QryPlan {
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Compile a plan for an initialized query.
+   *  @param q The query, which must be a QrySop.
+   *  @param r The retrieval model.
+   *  @return The plan.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static QryPlan compile (Qry q, RetrievalModel r) throws IOException {
+
+    if (r instanceof RetrievalModelBM25) {
+      RetrievalModelBM25 bm25 = (RetrievalModelBM25) r;
+
+      if (q instanceof QrySopScore)
+        return new Bm25Score ((QrySopScore) q, bm25);
+
+      if (q instanceof QrySopSum) {
+        for (Qry q_i : q.args) {
+          if (! (q_i instanceof QrySopScore) && ! (q_i instanceof QrySopSum))
+            return new Generic ((QrySop) q, r);
+        }
+
+        return new Bm25Sum ((QrySopSum) q, bm25);
+      }
+    } else if (r instanceof RetrievalModelIndri) {
+      RetrievalModelIndri indri = (RetrievalModelIndri) r;
+
+      if (q instanceof QrySopScore)
+        return new IndriScore ((QrySopScore) q, indri);
+
+      if (q instanceof QrySopAnd)
+        return new IndriAnd (q, indri);
+
+      if (q instanceof QrySopWand)
+        return new IndriWand ((QrySopWand) q, indri);
+
+      if (q instanceof QrySopWsum)
+        return new IndriWsum ((QrySopWsum) q, indri);
+    }
+
+    return new Generic ((QrySop) q, r);
+  }
+
+  /**
+   *  Compile the arguments of a query operator.
+   */
+  private static QryPlan[] compileArgs (Qry q, RetrievalModel r)
+    throws IOException {
+
+    QryPlan[] args = new QryPlan[q.args.size ()];
+
+    for (int i = 0; i < args.length; i++)
+      args[i] = QryPlan.compile (q.args.get (i), r);
+
+    return args;
+  }
+
+  /**
+   *  Get the score of the document that the query matched.
+   *  @param docid The document that the query matched.
+   *  @return The document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract double getScore (int docid) throws IOException;
+
+  /**
+   *  Get the score of a document that the query doesn't match.
+   *  @param docid The internal id of the document.
+   *  @return The default score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public abstract double getDefaultScore (int docid) throws IOException;
+
+  /**
+   *  Get the log of the score of the document that the query matched.
+   *  @param docid The document that the query matched.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getLogScore (int docid) throws IOException {
+    return Math.log (this.getScore (docid));
+  }
+
+  /**
+   *  Get the log of the score of a document that the query doesn't match.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public double getDefaultLogScore (int docid) throws IOException {
+    return Math.log (this.getDefaultScore (docid));
+  }
+
+  /**
+   *  Returns true if a query argument matches a document.
+   */
+  private static boolean matches (Qry q, RetrievalModel r, int docid) {
+    return q.docIteratorHasMatch (r) && (q.docIteratorGetMatch () == docid);
+  }
+
+  //  --------------- Nested classes --------------------------------
+
+  /**
+   *  A query operator that has no plan node scores itself.
+   */
+  private static final class Generic extends QryPlan {
+
+    private final QrySop q;
+    private final RetrievalModel r;
+
+    private Generic (QrySop q, RetrievalModel r) {
+      this.q = q;
+      this.r = r;
+    }
+
+    public double getScore (int docid) throws IOException {
+      return this.q.getScore (this.r);
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      return this.q.getDefaultScore (this.r, docid);
+    }
+
+    public double getLogScore (int docid) throws IOException {
+      return this.q.getLogScore (this.r);
+    }
+
+    public double getDefaultLogScore (int docid) throws IOException {
+      return this.q.getDefaultLogScore (this.r, docid);
+    }
+  }
+
+  /**
+   *  BM25 SCORE.  The weight of the term's tf in a document of length
+   *  docLen is tf / (tf + k_1 * ((1 - b) + b * (docLen / avg_docLen))).
+   *  The denominator's length normalization may come from the model's
+   *  table.
+   */
+  private static final class Bm25Score extends QryPlan {
+
+    private final QryIop q;
+    private final DocLengthStore.FieldLengths lengths;
+    private final double idf;
+    private final double avgDocLen;
+    private final double k_1;
+    private final double oneMinusB;
+    private final double b;
+    private final double userWeight;
+    private final double[] norms;
+
+    private Bm25Score (QrySopScore q, RetrievalModelBM25 r) throws IOException {
+      double k_3 = r.getK_3 ();
+
+      this.q = (QryIop) q.args.get (0);
+      this.lengths = this.q.getFieldLengths ();
+      this.idf = this.q.idf;
+      this.avgDocLen = this.q.avg_docLen;
+      this.k_1 = r.getK_1 ();
+      this.b = r.getB ();
+      this.oneMinusB = 1 - this.b;
+      this.userWeight = (k_3 + 1) * 1 / (k_3 + 1);
+      this.norms = r.getNormTable () ? r.getLengthNorms (this.q.getField ()) : null;
+    }
+
+    public double getScore (int docid) {
+      double tf = (double) this.q.docIteratorGetMatchTf ();
+
+      if (this.norms != null)
+        return this.idf * (tf / (tf + this.norms[docid])) * this.userWeight;
+
+      double docLen = this.lengths.get (docid);
+      double tfWeight =
+        tf / (tf + this.k_1 * (this.oneMinusB + this.b * (docLen / this.avgDocLen)));
+
+      return this.idf * tfWeight * this.userWeight;
+    }
+
+    public double getDefaultScore (int docid) {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  BM25 #SUM.
+   */
+  private static final class Bm25Sum extends QryPlan {
+
+    private final Qry[] args;
+    private final QryPlan[] plans;
+    private final RetrievalModel r;
+
+    private Bm25Sum (QrySopSum q, RetrievalModelBM25 r) throws IOException {
+      this.args = q.args.toArray (new Qry[q.args.size ()]);
+      this.plans = QryPlan.compileArgs (q, r);
+      this.r = r;
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        if (QryPlan.matches (this.args[i], this.r, docid))
+          score += this.plans[i].getScore (docid);
+      }
+
+      return score;
+    }
+
+    public double getDefaultScore (int docid) {
+      return 0.0;
+    }
+  }
+
+  /**
+   *  Indri SCORE:  a Dirichlet-smoothed, Jelinek-Mercer-mixed
+   *  estimate of the term's probability in the document.
+   */
+  private static final class IndriScore extends QryPlan {
+
+    private final QryIop q;
+    private final DocLengthStore.FieldLengths lengths;
+    private final double mu;
+    private final double oneMinusLambda;
+    private final double muMle;
+    private final double lambdaMle;
+
+    private IndriScore (QrySopScore q, RetrievalModelIndri r)
+      throws IOException {
+      double lambda = r.getLambda ();
+
+      this.q = (QryIop) q.args.get (0);
+      this.lengths = this.q.getFieldLengths ();
+
+      double mle_qc = this.q.getCtf () /
+        (double) this.q.getFieldStats ().sumOfFieldLengths;
+
+      this.mu = r.getMu ();
+      this.oneMinusLambda = 1 - lambda;
+      this.muMle = this.mu * mle_qc;
+      this.lambdaMle = lambda * mle_qc;
+    }
+
+    public double getScore (int docid) {
+      double tf = this.q.docIteratorGetMatchTf ();
+      double docLen = this.lengths.get (docid);
+
+      return this.oneMinusLambda * ((tf + this.muMle) / (docLen + this.mu)) +
+        this.lambdaMle;
+    }
+
+    public double getDefaultScore (int docid) {
+      double docLen = (double) this.lengths.get (docid);
+
+      return this.oneMinusLambda * (this.muMle / (docLen + this.mu)) +
+        this.lambdaMle;
+    }
+  }
+
+  /**
+   *  Indri #AND:  the geometric mean of the arguments' scores.
+   */
+  private static final class IndriAnd extends QryPlan {
+
+    private final Qry[] args;
+    private final QryPlan[] plans;
+    private final RetrievalModel r;
+    private final double exponent;
+
+    private IndriAnd (Qry q, RetrievalModelIndri r) throws IOException {
+      this.args = q.args.toArray (new Qry[q.args.size ()]);
+      this.plans = QryPlan.compileArgs (q, r);
+      this.r = r;
+      this.exponent = 1.0 / (double) this.args.length;
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double s = QryPlan.matches (this.args[i], this.r, docid) ?
+          this.plans[i].getScore (docid) : this.plans[i].getDefaultScore (docid);
+
+        score *= Math.pow (s, this.exponent);
+      }
+
+      return score;
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++)
+        score *= Math.pow (this.plans[i].getDefaultScore (docid), this.exponent);
+
+      return score;
+    }
+
+    public double getLogScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += QryPlan.matches (this.args[i], this.r, docid) ?
+          this.plans[i].getLogScore (docid) : this.plans[i].getDefaultLogScore (docid);
+      }
+
+      return score / this.args.length;
+    }
+
+    public double getDefaultLogScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++)
+        score += this.plans[i].getDefaultLogScore (docid);
+
+      return score / this.args.length;
+    }
+  }
+
+  /**
+   *  Indri #WAND:  the weighted geometric mean of the arguments' scores.
+   *  QrySopWand stores its weights in reverse order.
+   */
+  private static final class IndriWand extends QryPlan {
+
+    private final Qry[] args;
+    private final QryPlan[] plans;
+    private final RetrievalModel r;
+    private final double[] weights;
+    private final double[] exponents;
+    private final double sumOfWeight;
+
+    private IndriWand (QrySopWand q, RetrievalModelIndri r) throws IOException {
+      int n = q.args.size ();
+      int size = q.weightArray.size ();
+
+      this.args = q.args.toArray (new Qry[n]);
+      this.plans = QryPlan.compileArgs (q, r);
+      this.r = r;
+      this.weights = new double[n];
+      this.exponents = new double[n];
+      this.sumOfWeight = q.sumOfWeight;
+
+      for (int i = 0; i < n; i++) {
+        this.weights[i] = q.weightArray.get (size - 1 - i);
+        this.exponents[i] = this.weights[i] / this.sumOfWeight;
+      }
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        double s = QryPlan.matches (this.args[i], this.r, docid) ?
+          this.plans[i].getScore (docid) : this.plans[i].getDefaultScore (docid);
+
+        score *= Math.pow (s, this.exponents[i]);
+      }
+
+      return score;
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      double score = 1.0;
+
+      for (int i = 0; i < this.args.length; i++)
+        score *= Math.pow (this.plans[i].getDefaultScore (docid), this.exponents[i]);
+
+      return score;
+    }
+
+    public double getLogScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.weights[i] * (QryPlan.matches (this.args[i], this.r, docid) ?
+          this.plans[i].getLogScore (docid) : this.plans[i].getDefaultLogScore (docid));
+      }
+
+      return score / this.sumOfWeight;
+    }
+
+    public double getDefaultLogScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++)
+        score += this.weights[i] * this.plans[i].getDefaultLogScore (docid);
+
+      return score / this.sumOfWeight;
+    }
+  }
+
+  /**
+   *  Indri #WSUM:  the weighted arithmetic mean of the arguments'
+   *  scores.  QrySopWsum stores its weights in reverse order.
+   */
+  private static final class IndriWsum extends QryPlan {
+
+    private final Qry[] args;
+    private final QryPlan[] plans;
+    private final RetrievalModel r;
+    private final double[] weights;
+
+    private IndriWsum (QrySopWsum q, RetrievalModelIndri r) throws IOException {
+      int n = q.args.size ();
+      int size = q.weightArray.size ();
+
+      this.args = q.args.toArray (new Qry[n]);
+      this.plans = QryPlan.compileArgs (q, r);
+      this.r = r;
+      this.weights = new double[n];
+
+      for (int i = 0; i < n; i++)
+        this.weights[i] = q.weightArray.get (size - 1 - i) / q.sumOfWeight;
+    }
+
+    public double getScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++) {
+        score += this.weights[i] * (QryPlan.matches (this.args[i], this.r, docid) ?
+          this.plans[i].getScore (docid) : this.plans[i].getDefaultScore (docid));
+      }
+
+      return score;
+    }
+
+    public double getDefaultScore (int docid) throws IOException {
+      double score = 0.0;
+
+      for (int i = 0; i < this.args.length; i++)
+        score += this.weights[i] * this.plans[i].getDefaultScore (docid);
+
+      return score;
+    }
+  }
+}
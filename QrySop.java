@@ -27,6 +27,33 @@ public abstract class QrySop extends Qry {
   public abstract double getDefaultScore(RetrievalModel r, int docid)
     throws IOException;
 
+  /**
+   *  Get the natural log of the score for the document that
+   *  docIteratorHasMatch matched.  Operators that multiply their
+   *  arguments' scores (e.g., Indri #AND) override this to add their
+   *  arguments' logs instead, which is faster than Math.pow and
+   *  doesn't underflow on long queries.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @return The log of the document score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getLogScore (RetrievalModel r) throws IOException {
+    return Math.log (this.getScore (r));
+  }
+
+  /**
+   *  Get the natural log of the default score for a document that
+   *  the query doesn't match.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docid The internal id of the document.
+   *  @return The log of the default score.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public double getDefaultLogScore (RetrievalModel r, int docid)
+    throws IOException {
+    return Math.log (this.getDefaultScore (r, docid));
+  }
+
   /**
    *  Initialize the query operator (and its arguments), including any
    *  internal iterators.  If the query operator is of type QryIop, it
@@ -39,5 +66,7 @@ public abstract class QrySop extends Qry {
     for (Qry q_i: this.args) {
       q_i.initialize (r);
     }
+
+    this.docIteratorReset ();
   }
 }
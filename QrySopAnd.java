@@ -118,4 +118,43 @@ public class QrySopAnd extends QrySop{
         return score;
     }
 
+    /**
+     *  get the log of the indri score:  the mean of the arguments' logs.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the document score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getLogScore(RetrievalModel r) throws IOException{
+        if(!(r instanceof RetrievalModelIndri)){
+            return super.getLogScore(r);
+        }
+        double score = 0.0;
+        int docid = this.docIteratorGetMatch();
+        for(Qry q_i : this.args){
+            if( q_i.docIteratorHasMatch(r)  && q_i.docIteratorGetMatch() == docid){
+                score += ((QrySop)q_i).getLogScore(r);
+            } else{
+                score += ((QrySop)q_i).getDefaultLogScore(r,docid);
+            }
+        }
+        return score / this.args.size();
+    }
+
+    /**
+     *  get the log of the default score for indri model.
+     *  @param r The retrieval model that determines how scores are calculated.
+     *  @return The log of the default score.
+     *  @throws IOException Error accessing the Lucene index
+     */
+    public double getDefaultLogScore(RetrievalModel r, int docid) throws IOException{
+        if(!(r instanceof RetrievalModelIndri)){
+            return super.getDefaultLogScore(r, docid);
+        }
+        double score = 0.0;
+        for(Qry q_i :this.args) {
+            score += ((QrySop) q_i).getDefaultLogScore(r, docid);
+        }
+        return score / this.args.size();
+    }
+
 }
@@ -14,6 +14,17 @@ public class QrySopScore extends QrySop {
    *  Document-independent values that should be determined just once.
    *  Some retrieval models have these, some don't.
    */
+
+  /**
+   *  BM25:  the length normalization of each document in the field,
+   *  if the model uses tables.
+   */
+  private double[] bm25Norms = null;
+
+  /**
+   *  A buffer for the document lengths of a block of postings.
+   */
+  private int[] blockLengths = new int[InvList.SKIP_BLOCK_SIZE];
   
   /**
    *  Indicates whether the query has a match.
@@ -57,8 +68,9 @@ public class QrySopScore extends QrySop {
       throw new IllegalArgumentException("Score Operator should have only one argument");
     }
     Qry q = this.args.get(0);
-    if(!(q instanceof QryIopTerm) && !(q instanceof QryIopNear)){
-      throw new IllegalArgumentException("Argument should be QryIopTerm or QryIopNear");
+    if(!(q instanceof QryIopTerm) && !(q instanceof QryIopNear) &&
+       !(q instanceof QryIopPhrase)){
+      throw new IllegalArgumentException("Argument should be QryIopTerm, QryIopNear or QryIopPhrase");
     }
     if(q.docIteratorHasMatch(r)) return 1.0;
     else return 0.0;
@@ -78,7 +90,7 @@ public class QrySopScore extends QrySop {
       if (!(q instanceof QryIop)) {
         throw new IllegalArgumentException("Argument should be QryIopTerm or QryIopNear");
       }
-        return ((QryIop) q).docIteratorGetMatchPosting().tf;
+        return ((QryIop) q).docIteratorGetMatchTf();
   }
 
   /**
@@ -96,13 +108,18 @@ public class QrySopScore extends QrySop {
       throw new IllegalArgumentException("Argument should be QryIop");
     }
     double rsj_weight = ((QryIop)q).idf;
-    double tf = (double)((QryIop)q).docIteratorGetMatchPosting().tf;
+    double tf = (double)((QryIop)q).docIteratorGetMatchTf();
     double k_1 = ((RetrievalModelBM25)r).getK_1();
     double b = ((RetrievalModelBM25)r).getB();
     double k_3 = ((RetrievalModelBM25)r).getK_3();
     double avg_docLen = ((QryIop)q).avg_docLen;
-    double docLen = Idx.getFieldLength(((QryIop)q).field,q.docIteratorGetMatch());
-    double tf_weight = (double)tf/(tf+k_1*((1-b)+b*(docLen/avg_docLen)));
+    double tf_weight;
+    if (this.bm25Norms != null) {
+      tf_weight = tf/(tf+this.bm25Norms[q.docIteratorGetMatch()]);
+    } else {
+      double docLen = ((QryIop)q).getFieldLengths().get(q.docIteratorGetMatch());
+      tf_weight = (double)tf/(tf+k_1*((1-b)+b*(docLen/avg_docLen)));
+    }
     double user_weight = (k_3+1)*1/(k_3+1);
     double score = rsj_weight * tf_weight * user_weight;
     return score;
@@ -126,15 +143,82 @@ public class QrySopScore extends QrySop {
     int docid = ((QryIop)q).docIteratorGetMatch();
     double lambda = ((RetrievalModelIndri)r).getLambda();
     double mu = ((RetrievalModelIndri)r).getMu();
-    double tf = ((QryIop)q).docIteratorGetMatchPosting().tf;
+    double tf = ((QryIop)q).docIteratorGetMatchTf();
     double ctf = ((QryIop)q).getCtf();
-    double collectionLen = Idx.getSumOfFieldLengths(((QryIop)q).field);
-    double docLen = Idx.getFieldLength(((QryIop)q).field,docid);
+    double collectionLen = ((QryIop)q).getFieldStats().sumOfFieldLengths;
+    double docLen = ((QryIop)q).getFieldLengths().get(docid);
     double mle_qc = ctf/collectionLen;
     double score = (1-lambda)*((tf+(mu*mle_qc))/(docLen+mu)) + (lambda * mle_qc);
     return score;
   }
 
+  /**
+   *  Score a block of the argument's postings in one loop, instead of
+   *  one posting at a time through getScore.  Document lengths are
+   *  gathered for the whole block first.  The scores are the same as
+   *  getScore's.  Only BM25 and Indri support block scoring.
+   *  @param r The retrieval model that determines how scores are calculated.
+   *  @param docids The docids of the postings.
+   *  @param tfs The tfs of the postings.
+   *  @param count The number of postings.
+   *  @param scores The array to store the scores in.
+   *  @throws IOException Error accessing the Lucene index
+   */
+  public void getScores (RetrievalModel r, int[] docids, int[] tfs, int count,
+                         double[] scores) throws IOException {
+
+    QryIop q = (QryIop) this.args.get (0);
+
+    if (this.blockLengths.length < count) {
+      this.blockLengths = new int[count];
+    }
+
+    int[] lengths = this.blockLengths;
+
+    if (r instanceof RetrievalModelBM25) {
+      double rsj_weight = q.idf;
+      double k_1 = ((RetrievalModelBM25)r).getK_1();
+      double b = ((RetrievalModelBM25)r).getB();
+      double k_3 = ((RetrievalModelBM25)r).getK_3();
+      double avg_docLen = q.avg_docLen;
+      double user_weight = (k_3+1)*1/(k_3+1);
+
+      if (this.bm25Norms != null) {
+        double[] norms = this.bm25Norms;
+
+        for (int i = 0; i < count; i++) {
+          double tf = tfs[i];
+          scores[i] = rsj_weight * (tf/(tf+norms[docids[i]])) * user_weight;
+        }
+      } else {
+        q.getFieldLengths().get(docids, count, lengths);
+
+        for (int i = 0; i < count; i++) {
+          double tf = tfs[i];
+          double docLen = lengths[i];
+          scores[i] = rsj_weight * (tf/(tf+k_1*((1-b)+b*(docLen/avg_docLen)))) * user_weight;
+        }
+      }
+    } else if (r instanceof RetrievalModelIndri) {
+      double lambda = ((RetrievalModelIndri)r).getLambda();
+      double mu = ((RetrievalModelIndri)r).getMu();
+      double ctf = q.getCtf();
+      double collectionLen = q.getFieldStats().sumOfFieldLengths;
+      double mle_qc = ctf/collectionLen;
+
+      q.getFieldLengths().get(docids, count, lengths);
+
+      for (int i = 0; i < count; i++) {
+        double tf = tfs[i];
+        double docLen = lengths[i];
+        scores[i] = (1-lambda)*((tf+(mu*mle_qc))/(docLen+mu)) + (lambda * mle_qc);
+      }
+    } else {
+      throw new IllegalArgumentException
+        (r.getClass().getName() + " doesn't support block scoring.");
+    }
+  }
+
   /**
    * get default score for Indri model in which document do not have match terms.
    * @param  r The retrieval model that determines how scores are calculated.
@@ -152,8 +236,8 @@ public class QrySopScore extends QrySop {
     double lambda = ((RetrievalModelIndri)r).getLambda();
     double mu = ((RetrievalModelIndri)r).getMu();
     double ctf = ((QryIop)q).getCtf();
-    double collectionLen = (double)Idx.getSumOfFieldLengths(((QryIop)q).field);
-    double docLen = (double)Idx.getFieldLength(((QryIop)q).field,docid);
+    double collectionLen = (double)((QryIop)q).getFieldStats().sumOfFieldLengths;
+    double docLen = (double)((QryIop)q).getFieldLengths().get(docid);
     double mle_qc = ctf/collectionLen;
     double score = (1-lambda)*((mu*mle_qc)/(docLen+mu)) + (lambda * mle_qc);
     return score;
@@ -170,7 +254,19 @@ public class QrySopScore extends QrySop {
   public void initialize (RetrievalModel r) throws IOException {
 
     Qry q = this.args.get (0);
+
+    //  Boolean scores depend only on matches and tfs.
+
+    ((QryIop) q).statsNeeded =
+      ! ((r instanceof RetrievalModelUnrankedBoolean) ||
+         (r instanceof RetrievalModelRankedBoolean));
     q.initialize (r);
+
+    if ((r instanceof RetrievalModelBM25) &&
+        ((RetrievalModelBM25) r).getNormTable ()) {
+      this.bm25Norms =
+        ((RetrievalModelBM25) r).getLengthNorms (((QryIop) q).getField ());
+    }
   }
 
 }
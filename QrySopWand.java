@@ -78,4 +78,47 @@ public class QrySopWand extends QrySop {
         return score;
     }
 
+    /**
+     * get the log of the Indri score:  the weighted mean of the
+     * arguments' logs.
+     * @param  r The retrieval model that determines how scores are calculated.
+     * @return The log of the document score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    public double getLogScore(RetrievalModel r) throws IOException{
+        if(!(r instanceof RetrievalModelIndri)){
+            throw new IllegalArgumentException("Wand should be applied in Indri");
+        }
+        double score = 0.0;
+        int doc_id = this.docIteratorGetMatch();
+        int size = weightArray.size();
+        for(int i =0;i < this.args.size();i++){
+            Qry q_i = this.args.get(i);
+            double weight = weightArray.get(size-1-i);
+            if(q_i.docIteratorHasMatch(r) && q_i.docIteratorGetMatch() == doc_id){
+                score += weight * ((QrySop)q_i).getLogScore(r);
+            } else {
+                score += weight * ((QrySop)q_i).getDefaultLogScore(r,doc_id);
+            }
+        }
+        return score / this.sumOfWeight;
+    }
+
+    /**
+     * get the log of the default score for Indri model.
+     * @param  r The retrieval model that determines how scores are calculated.
+     * @return The log of the default score.
+     * @throws IOException Error accessing the Lucene index
+     */
+    public double getDefaultLogScore(RetrievalModel r, int docid) throws IOException{
+        double score = 0.0;
+        int size = weightArray.size();
+        for(int i =0; i<this.args.size();i++){
+            Qry q_i = this.args.get(i);
+            double weight = this.weightArray.get(size-1-i);
+            score += weight * ((QrySop)q_i).getDefaultLogScore(r,docid);
+        }
+        return score / this.sumOfWeight;
+    }
+
 }
\ No newline at end of file
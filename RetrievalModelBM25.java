@@ -1,3 +1,7 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Created by xinnacai on 2/16/16.
  */
@@ -6,6 +10,16 @@ public class RetrievalModelBM25 extends RetrievalModel {
     public double b;
     public double k_3;
 
+    /** whether document length normalizations are read from a table. */
+    private boolean normTable = false;
+
+    /**
+     * For each field, k_1*((1-b)+b*(docLen/avg_docLen)) of every
+     * document, and the k_1 and b that the tables were built with.
+     */
+    private Map<String, double[]> lengthNorms = new HashMap<String, double[]>();
+    private double normsK_1;
+    private double normsB;
 
     public String defaultQrySopName (){return new String("#sum");}
 
@@ -34,4 +48,52 @@ public class RetrievalModelBM25 extends RetrievalModel {
         return this.k_3;
     }
 
+    /**
+     * Choose whether scoring reads each document's length normalization
+     * from a per-field table instead of computing it for each posting.
+     * @param normTable True to use the tables.
+     */
+    public void setNormTable(boolean normTable){
+        this.normTable = normTable;
+    }
+    public boolean getNormTable(){
+        return this.normTable;
+    }
+
+    /**
+     * Get the length normalization k_1*((1-b)+b*(docLen/avg_docLen)) of
+     * every document in a field, indexed by internal docid.  The table
+     * is built the first time that it is requested, with the same
+     * arithmetic as QrySopScore, so scores are the same.  Tables are
+     * rebuilt if k_1 or b has changed since they were built.
+     * @param field The field.
+     * @return The table, which must not be modified.
+     * @throws IOException Error accessing the Lucene index.
+     */
+    public double[] getLengthNorms(String field) throws IOException {
+        if (this.normsK_1 != this.k_1 || this.normsB != this.b) {
+            this.lengthNorms.clear();
+            this.normsK_1 = this.k_1;
+            this.normsB = this.b;
+        }
+
+        double[] norms = this.lengthNorms.get(field);
+
+        if (norms == null) {
+            DocLengthStore.FieldLengths lengths = Idx.getFieldLengths(field);
+            double avg_docLen = Idx.getFieldStats(field).averageLength;
+
+            norms = new double[Idx.INDEXREADER.maxDoc()];
+
+            for (int docid = 0; docid < norms.length; docid++) {
+                double docLen = lengths.get(docid);
+                norms[docid] = k_1*((1-b)+b*(docLen/avg_docLen));
+            }
+
+            this.lengthNorms.put(field, norms);
+        }
+
+        return norms;
+    }
+
 }
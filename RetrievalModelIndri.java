@@ -5,6 +5,9 @@ public class RetrievalModelIndri extends RetrievalModel {
     public double mu;
     public double lambda;
 
+    /** whether queries are scored in log space; rankings are the same. */
+    public boolean logSpace = false;
+
     public String defaultQrySopName(){return new String("#and");}
 
     public RetrievalModelIndri(double mu, double lambda){
@@ -16,4 +19,6 @@ public class RetrievalModelIndri extends RetrievalModel {
 
     public double getMu(){return this.mu;}
     public double getLambda() {return this.lambda;}
+    public void setLogSpace(boolean logSpace){this.logSpace = logSpace;}
+    public boolean getLogSpace(){return this.logSpace;}
 }
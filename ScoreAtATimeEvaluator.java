@@ -0,0 +1,454 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A score-at-a-time evaluator for BM25 #SUM queries whose arguments
+ *  are SCORE operators over terms, using an ImpactIndex built with the
+ *  model's k_1 and b.  The segments of all of the terms are processed
+ *  in order of decreasing impact, adding impacts to an accumulator for
+ *  each document, so the postings that matter most are read first.
+ *  <p>
+ *  Impacts are quantized scores, so accumulators only locate the
+ *  top documents; the chosen documents are scored exactly with the
+ *  query's SCORE operators, as QrySopSum would score them.  Each
+ *  impact is within half a unit of its score, so a document's sum is
+ *  within m/2 units of its score, where m is the number of terms.
+ *  Evaluation stops early when that error and the impacts still to
+ *  come can't change which documents are in the top k.  When it stops
+ *  that way, or reads every posting, the results are the same as
+ *  QrySopSum produces.
+ *  </p><p>
+ *  The evaluator initializes the query itself, so that the terms'
+ *  docid-ordered postings aren't read before evaluation starts:  the
+ *  terms stream their postings from the index whether or not
+ *  streamingTerms is set, and scoring a candidate advances each term
+ *  to it, so only the candidates' postings are decoded.  A term that
+ *  is in the index's posting cache uses the cached list.
+ *  </p><p>
+ *  A budget of postings or of time may stop evaluation sooner.  Then
+ *  the k documents with the largest sums are returned, which are
+ *  usually, but not always, the top k.  The time budget starts when
+ *  evaluate is called, so it includes initializing the query; the
+ *  candidates are scored even if it has run out.
+ *  </p>
+ */
+public class ScoreAtATimeEvaluator {
+
+  //  --------------- Constants and variables -----------------------
+
+  private RetrievalModelBM25 model;
+  private QrySopSum query;
+
+  /**
+   *  The SCORE operators, their inverted lists, and their impact-
+   *  ordered postings (null if a term doesn't occur), in argument
+   *  order.
+   */
+  private QrySopScore[] scorers;
+  private QryIop[] lists;
+  private ImpactIndex.Postings[] postings;
+
+  /**
+   *  The largest error of an accumulator, in impact units.
+   */
+  private int slack;
+
+  /**
+   *  Each document's accumulator holds 1 + the sum of its impacts, so
+   *  that 0 marks a document that no posting has reached.  The docids
+   *  of the documents that have been reached are in touched.
+   */
+  private int[] acc;
+  private int[] touched;
+  private int touchedSize = 0;
+
+  /**
+   *  A min-heap of the documents with the largest accumulators.
+   */
+  private int[] heap;
+  private int heapSize = 0;
+
+  /**
+   *  The top k results.
+   */
+  private TopKCollector collector;
+  private int depth;
+
+  /**
+   *  Budgets.  0 means unlimited.
+   */
+  private long postingsBudget = 0;
+  private long timeBudget = 0;
+
+  /**
+   *  Statistics.
+   */
+  private long postingsRead = 0;
+  private long postingsTotal = 0;
+  private int segmentsRead = 0;
+  private int segmentsTotal = 0;
+  private int docsScored = 0;
+  private String stopReason = "";
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Returns true if the evaluator can evaluate the query with the
+   *  retrieval model and the impact index.  The query must not be
+   *  initialized yet; terms that aren't in the impact index are
+   *  checked against the index statistics.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @param index The impact index, or null.
+   *  @return True if q is a BM25 #SUM of SCORE operators over terms
+   *  that are in the index, and the index has the model's k_1 and b.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public static boolean isApplicable (Qry q, RetrievalModel r,
+                                      ImpactIndex index)
+    throws IOException {
+
+    if ((index == null) || ! MaxScoreEvaluator.isApplicable (q, r))
+      return false;
+
+    RetrievalModelBM25 model = (RetrievalModelBM25) r;
+
+    if ((model.getK_1 () != index.getK_1 ()) || (model.getB () != index.getB ()))
+      return false;
+
+    for (Qry q_i : q.args) {
+      Qry arg = q_i.args.get (0);
+
+      if (! (arg instanceof QryIopTerm))
+        return false;
+
+      QryIopTerm term = (QryIopTerm) arg;
+
+      if ((index.getPostings (term.getTerm (), term.getField ()) == null) &&
+          (Idx.getDf (term.getTerm (), term.getField ()) > 0))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Prepare to evaluate a query.  The query must not be initialized;
+   *  evaluate initializes it.
+   *  @param q The query, which must satisfy isApplicable.
+   *  @param model The BM25 retrieval model.
+   *  @param index The impact index.
+   *  @param collector The collector of the top results.
+   *  @param depth The number of top results.
+   */
+  public ScoreAtATimeEvaluator (QrySopSum q, RetrievalModelBM25 model,
+                                ImpactIndex index, TopKCollector collector,
+                                int depth) {
+
+    int n = q.args.size ();
+
+    this.model = model;
+    this.query = q;
+    this.collector = collector;
+    this.depth = depth;
+    this.scorers = new QrySopScore[n];
+    this.lists = new QryIop[n];
+    this.postings = new ImpactIndex.Postings[n];
+    this.slack = n;
+
+    for (int i = 0; i < n; i++) {
+      this.scorers[i] = (QrySopScore) q.args.get (i);
+      this.lists[i] = (QryIop) this.scorers[i].args.get (0);
+
+      QryIopTerm term = (QryIopTerm) this.lists[i];
+
+      term.setStreamed (true);
+      this.postings[i] = index.getPostings (term.getTerm (), term.getField ());
+
+      if (this.postings[i] != null) {
+        this.postingsTotal += this.postings[i].getDf ();
+        this.segmentsTotal += this.postings[i].getSegmentCount ();
+      }
+    }
+  }
+
+  /**
+   *  Stop after reading a number of postings.
+   *  @param postingsBudget The number of postings, or 0 for no limit.
+   */
+  public void setPostingsBudget (long postingsBudget) {
+    this.postingsBudget = postingsBudget;
+  }
+
+  /**
+   *  Stop after a length of time, counted from the start of evaluate.
+   *  @param timeBudget The time in milliseconds, or 0 for no limit.
+   */
+  public void setTimeBudget (long timeBudget) {
+    this.timeBudget = timeBudget;
+  }
+
+  /**
+   *  Initialize and evaluate the query.
+   *  @return The top results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList evaluate () throws IOException {
+
+    long deadline = (this.timeBudget > 0) ?
+      System.nanoTime () + this.timeBudget * 1000000L : Long.MAX_VALUE;
+    int n = this.postings.length;
+
+    //  The terms stream, so this reads their statistics, not their
+    //  postings.
+
+    this.query.initialize (this.model);
+
+    this.acc = new int[Idx.INDEXREADER.maxDoc ()];
+    this.touched = new int[(int) Math.min (this.postingsTotal, this.acc.length)];
+    this.heap = new int[this.depth + 1];
+
+    //  Order the segments by decreasing impact.  Each key packs the
+    //  inverted impact, the argument, and the segment, so a sort of
+    //  primitives orders them and ties stay in argument order.
+
+    long[] order = new long[this.segmentsTotal];
+    int[] starts = new int[n];
+    int[] next = new int[n];
+    int remaining = 0;
+    int m = 0;
+
+    for (int i = 0; i < n; i++) {
+      if (this.postings[i] == null)
+        continue;
+
+      for (int s = 0; s < this.postings[i].getSegmentCount (); s++) {
+        order[m++] = ((long) (0xFFFF - this.postings[i].getImpact (s)) << 40) |
+                     ((long) i << 20) | s;
+      }
+
+      if (this.postings[i].getSegmentCount () > 0)
+        remaining += this.postings[i].getImpact (0);
+    }
+
+    Arrays.sort (order);
+
+    long nextCheck = this.depth;
+    boolean exact = true;
+
+    this.stopReason = "exhausted";
+
+    for (long key : order) {
+      int i = (int) ((key >>> 20) & 0xFFFFF);
+      int s = (int) (key & 0xFFFFF);
+      ImpactIndex.Postings p = this.postings[i];
+      int impact = p.getImpact (s);
+      int length = p.getSegmentLength (s);
+
+      if (System.nanoTime () > deadline) {
+        this.stopReason = "time budget";
+        exact = false;
+        break;
+      }
+
+      if ((this.postingsBudget > 0) &&
+          (this.postingsRead + length > this.postingsBudget)) {
+        length = (int) (this.postingsBudget - this.postingsRead);
+        this.stopReason = "postings budget";
+        exact = false;
+      }
+
+      //  Segments of a term are in impact order, so its next posting
+      //  starts where the previous segment ended.
+
+      for (int j = starts[i], end = starts[i] + length; j < end; j++) {
+        int docid = p.getDocid (j);
+
+        if (this.acc[docid] == 0) {
+          this.acc[docid] = 1;
+          this.touched[this.touchedSize++] = docid;
+        }
+
+        this.acc[docid] += impact;
+      }
+
+      this.postingsRead += length;
+      this.segmentsRead++;
+
+      if (! exact)
+        break;
+
+      starts[i] += length;
+      next[i] = s + 1;
+      remaining -= impact;
+
+      if (next[i] < p.getSegmentCount ())
+        remaining += p.getImpact (next[i]);
+
+      //  Checking costs a pass over the accumulators, so checks are
+      //  made each time the postings read double.
+
+      if ((remaining > 0) && (this.postingsRead >= nextCheck)) {
+        nextCheck = 2 * this.postingsRead;
+
+        if (this.isStable (remaining)) {
+          this.stopReason = "stable";
+          break;
+        }
+      }
+    }
+
+    this.scoreCandidates (exact ? remaining : -1);
+    return this.collector.getScoreList ();
+  }
+
+  /**
+   *  Returns true if no document outside the k largest accumulators
+   *  can have a larger score than a document inside them.
+   *  @param remaining The most that an accumulator can still gain.
+   *  @return True if the top k is known.
+   */
+  private boolean isStable (int remaining) {
+
+    this.selectTop (this.depth + 1);
+
+    if (this.heapSize <= this.depth)
+      return false;
+
+    //  The root is the (k+1)'th largest, and the smaller of its
+    //  children is the k'th largest.
+
+    int outside = this.acc[this.heap[0]];
+    int inside = this.acc[this.heap[1]];
+
+    if (this.heapSize > 2)
+      inside = Math.min (inside, this.acc[this.heap[2]]);
+
+    return outside + remaining + this.slack < inside;
+  }
+
+  /**
+   *  Score the documents that may be in the top k exactly, and offer
+   *  them to the collector.
+   *  @param remaining The most that an accumulator can still gain, or
+   *  -1 if evaluation stopped on a budget.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void scoreCandidates (int remaining) throws IOException {
+
+    this.selectTop (this.depth);
+
+    int[] candidates;
+    int count = 0;
+
+    if (remaining < 0) {
+      candidates = Arrays.copyOf (this.heap, this.heapSize);
+      count = this.heapSize;
+    } else {
+
+      //  A document is a candidate if its largest possible score
+      //  reaches the smallest possible score of the k'th document.
+
+      int kth = (this.heapSize < this.depth) ? 0 : this.acc[this.heap[0]];
+
+      candidates = new int[this.touchedSize];
+
+      for (int j = 0; j < this.touchedSize; j++) {
+        int docid = this.touched[j];
+
+        if (this.acc[docid] + remaining + this.slack >= kth)
+          candidates[count++] = docid;
+      }
+    }
+
+    Arrays.sort (candidates, 0, count);
+
+    for (int j = 0; j < count; j++) {
+      int docid = candidates[j];
+      double score = 0.0;
+
+      for (int i = 0; i < this.lists.length; i++) {
+        this.lists[i].docIteratorAdvanceTo (docid);
+
+        if (this.lists[i].docIteratorHasMatch (this.model) &&
+            (this.lists[i].docIteratorGetMatch () == docid))
+          score += this.scorers[i].getScore (this.model);
+      }
+
+      this.collector.collect (docid, score);
+    }
+
+    this.docsScored = count;
+  }
+
+  /**
+   *  Select the k documents with the largest accumulators into the heap.
+   *  @param k The number of documents.
+   */
+  private void selectTop (int k) {
+
+    this.heapSize = 0;
+
+    for (int j = 0; j < this.touchedSize; j++) {
+      int docid = this.touched[j];
+
+      if (this.heapSize < k) {
+        int c = this.heapSize++;
+
+        //  Sift up.
+
+        while (c > 0) {
+          int parent = (c - 1) >>> 1;
+
+          if (this.acc[this.heap[parent]] <= this.acc[docid])
+            break;
+
+          this.heap[c] = this.heap[parent];
+          c = parent;
+        }
+
+        this.heap[c] = docid;
+      } else if (this.acc[docid] > this.acc[this.heap[0]]) {
+        int c = 0;
+
+        //  Sift down.
+
+        while (true) {
+          int child = 2 * c + 1;
+
+          if (child >= this.heapSize)
+            break;
+
+          if ((child + 1 < this.heapSize) &&
+              (this.acc[this.heap[child + 1]] < this.acc[this.heap[child]]))
+            child++;
+
+          if (this.acc[this.heap[child]] >= this.acc[docid])
+            break;
+
+          this.heap[c] = this.heap[child];
+          c = child;
+        }
+
+        this.heap[c] = docid;
+      }
+    }
+  }
+
+  /**
+   *  Get a report of how much of the query was read:  the postings and
+   *  segments that were read, the documents that were scored exactly,
+   *  and why evaluation stopped.
+   *  @return The report.
+   */
+  public String getPruningReport () {
+    return "Score-at-a-time:  " + this.postingsRead + " of " +
+      this.postingsTotal + " postings, " + this.segmentsRead + " of " +
+      this.segmentsTotal + " segments, " + this.docsScored +
+      " docs scored, stopped:  " + this.stopReason;
+  }
+}
@@ -0,0 +1,433 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+import java.util.*;
+
+/**
+ *  A term-at-a-time evaluator for flat queries:  a BM25 #SUM, or a
+ *  Boolean #OR, whose arguments are SCORE operators over terms.  Each
+ *  term's inverted list is read in turn, and its scores are added to
+ *  (or, for #OR, maximized into) an accumulator for each document.
+ *  The generic document-at-a-time iteration finds the smallest docid
+ *  of every argument for each document; term-at-a-time reads each
+ *  posting once, at the cost of an accumulator per document in the
+ *  index.  getCost estimates both, so that a query can use whichever
+ *  is cheaper.
+ *  <p>
+ *  BM25 accumulators are pruned.  Each term's score has a bound, as
+ *  in MaxScoreEvaluator.  Once the k'th largest accumulator is more
+ *  than the bounds of the terms still to read, a document that no
+ *  term has reached yet can't enter the top k, so no accumulators
+ *  are created, and accumulators that can't reach the k'th are
+ *  dropped.  The remaining terms are then read only at the documents
+ *  that have accumulators.
+ *  </p><p>
+ *  Terms are read in argument order, so scores are added in the order
+ *  that QrySopSum adds them, and the results are identical.
+ *  </p>
+ */
+public class TermAtATimeEvaluator {
+
+  //  --------------- Constants and variables -----------------------
+
+  /**
+   *  The relative costs of the cost model:  reading a posting into an
+   *  accumulator, allocating and clearing the accumulator of a
+   *  document, and checking one argument of a document-at-a-time
+   *  operator for one document.
+   */
+  private static final double POSTING_COST = 1.0;
+  private static final double ACCUMULATOR_COST = 0.1;
+  private static final double ARGUMENT_COST = 1.0;
+
+  private RetrievalModel model;
+
+  /**
+   *  True for a BM25 #SUM, false for a Boolean #OR.
+   */
+  private boolean sum;
+
+  /**
+   *  The SCORE operators and their inverted lists, in argument order.
+   */
+  private QrySopScore[] scorers;
+  private QryIop[] lists;
+
+  /**
+   *  BM25:  remainingBounds[i] is the sum of the bounds of the
+   *  arguments after argument i.
+   */
+  private double[] remainingBounds;
+
+  /**
+   *  The accumulators, and the documents that have them.  While new
+   *  accumulators may be created, isLive marks the documents in live.
+   */
+  private double[] acc;
+  private boolean[] isLive;
+  private int[] live;
+  private int liveSize = 0;
+
+  /**
+   *  The postings of a skip index block, and their scores.
+   */
+  private int[] blockDocids = new int[InvList.SKIP_BLOCK_SIZE];
+  private int[] blockTfs = new int[InvList.SKIP_BLOCK_SIZE];
+  private double[] blockScores = new double[InvList.SKIP_BLOCK_SIZE];
+
+  /**
+   *  A min-heap of the k largest accumulators, for the threshold.
+   */
+  private double[] heap;
+
+  /**
+   *  The top k results.
+   */
+  private TopKCollector collector;
+  private int depth;
+
+  /**
+   *  Statistics.
+   */
+  private long postingsRead = 0;
+  private int accumulatorsCreated = 0;
+  private int accumulatorsDropped = 0;
+  private int pruneAfter = -1;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Returns true if the evaluator can evaluate the query with the
+   *  retrieval model.
+   *  @param q The query.
+   *  @param r The retrieval model.
+   *  @return True if q is a BM25 #SUM or a Boolean #OR of SCORE
+   *  operators over terms.
+   */
+  public static boolean isApplicable (Qry q, RetrievalModel r) {
+
+    boolean sum = (r instanceof RetrievalModelBM25) && (q instanceof QrySopSum);
+    boolean or = ((r instanceof RetrievalModelUnrankedBoolean) ||
+                  (r instanceof RetrievalModelRankedBoolean)) &&
+                 (q instanceof QrySopOr);
+
+    if (! (sum || or) || (q.args.size () == 0))
+      return false;
+
+    for (Qry q_i : q.args) {
+      if (! (q_i instanceof QrySopScore) ||
+          ! (q_i.args.get (0) instanceof QryIopTerm))
+        return false;
+    }
+
+    return true;
+  }
+
+  /**
+   *  Estimate the cost of evaluating a query term-at-a-time, relative
+   *  to evaluating it document-at-a-time.  Term-at-a-time reads each
+   *  posting and allocates an accumulator for each document in the
+   *  index.  Document-at-a-time checks every argument for each
+   *  document that matches; if the terms occur independently, about
+   *  N * (1 - prod (1 - df_i / N)) documents match.  The query must
+   *  be initialized.
+   *  @param q The query, which must satisfy isApplicable.
+   *  @return The estimated cost of term-at-a-time divided by the
+   *  estimated cost of document-at-a-time.
+   */
+  public static double getCost (Qry q) {
+
+    double n = Idx.INDEXREADER.maxDoc ();
+    double postings = 0;
+    double missProbability = 1;
+
+    for (Qry q_i : q.args) {
+      double df = ((QryIop) q_i.args.get (0)).getDf ();
+
+      postings += df;
+      missProbability *= 1 - Math.min (1, df / n);
+    }
+
+    double taat = POSTING_COST * postings + ACCUMULATOR_COST * n;
+    double daat = ARGUMENT_COST * q.args.size () * n * (1 - missProbability);
+
+    return taat / Math.max (daat, 1);
+  }
+
+  /**
+   *  Prepare to evaluate a query.  The query must be initialized.
+   *  @param q The query, which must satisfy isApplicable.
+   *  @param model The retrieval model.
+   *  @param collector The collector of the top results.
+   *  @param depth The number of top results.
+   */
+  public TermAtATimeEvaluator (Qry q, RetrievalModel model,
+                               TopKCollector collector, int depth) {
+
+    int n = q.args.size ();
+
+    this.model = model;
+    this.sum = (q instanceof QrySopSum);
+    this.collector = collector;
+    this.depth = depth;
+    this.scorers = new QrySopScore[n];
+    this.lists = new QryIop[n];
+    this.remainingBounds = new double[n];
+
+    for (int i = 0; i < n; i++) {
+      this.scorers[i] = (QrySopScore) q.args.get (i);
+      this.lists[i] = (QryIop) this.scorers[i].args.get (0);
+    }
+
+    if (this.sum) {
+      for (int i = n - 1; i > 0; i--) {
+        this.remainingBounds[i - 1] = this.remainingBounds[i] +
+          MaxScoreEvaluator.getBound (this.lists[i], (RetrievalModelBM25) model);
+      }
+    }
+  }
+
+  /**
+   *  Evaluate the query.
+   *  @return The top results.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  public ScoreList evaluate () throws IOException {
+
+    int maxDoc = Idx.INDEXREADER.maxDoc ();
+    long postings = 0;
+
+    for (QryIop list : this.lists)
+      postings += list.getDf ();
+
+    this.acc = new double[maxDoc];
+    this.isLive = new boolean[maxDoc];
+    this.live = new int[(int) Math.min (postings, maxDoc)];
+    this.heap = new double[this.depth];
+
+    boolean admitting = true;
+
+    for (int i = 0; i < this.lists.length; i++) {
+      if (admitting)
+        this.readAll (i);
+      else
+        this.readLive (i);
+
+      //  Once no new document can reach the threshold, stop creating
+      //  accumulators, and drop those that can't reach it either.
+
+      if (this.sum && (i + 1 < this.lists.length)) {
+        double threshold = this.getThreshold ();
+
+        if (this.remainingBounds[i] < threshold) {
+          if (admitting) {
+            admitting = false;
+            this.pruneAfter = i;
+            Arrays.sort (this.live, 0, this.liveSize);
+          }
+
+          this.dropBelow (threshold - this.remainingBounds[i]);
+        }
+      }
+    }
+
+    for (int j = 0; j < this.liveSize; j++)
+      this.collector.collect (this.live[j], this.acc[this.live[j]]);
+
+    return this.collector.getScoreList ();
+  }
+
+  /**
+   *  Read all of an argument's postings, creating accumulators as
+   *  needed.
+   *  @param i The index of the argument.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readAll (int i) throws IOException {
+
+    QryIop list = this.lists[i];
+
+    if (this.sum && (list.invertedList != null)) {
+      this.readAllBlocks (i);
+      return;
+    }
+
+    while (list.docIteratorHasMatch (this.model)) {
+      int docid = list.docIteratorGetMatch ();
+
+      if (! this.isLive[docid]) {
+        this.isLive[docid] = true;
+        this.live[this.liveSize++] = docid;
+        this.accumulatorsCreated++;
+      }
+
+      this.accumulate (i, docid);
+      list.docIteratorAdvancePast (docid);
+    }
+  }
+
+  /**
+   *  Read all of a materialized argument's postings, a skip index
+   *  block at a time.  Each block is scored in one loop.
+   *  @param i The index of the argument.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readAllBlocks (int i) throws IOException {
+
+    QryIop list = this.lists[i];
+    InvList invList = list.invertedList;
+    int blocks = InvList.getBlockCount (invList.df);
+
+    for (int block = 0; block < blocks; block++) {
+      int count = invList.getBlockPostings (block, this.blockDocids, this.blockTfs);
+
+      this.scorers[i].getScores (this.model, this.blockDocids, this.blockTfs,
+                                 count, this.blockScores);
+
+      for (int j = 0; j < count; j++) {
+        int docid = this.blockDocids[j];
+
+        if (! this.isLive[docid]) {
+          this.isLive[docid] = true;
+          this.live[this.liveSize++] = docid;
+          this.accumulatorsCreated++;
+        }
+
+        this.acc[docid] += this.blockScores[j];
+      }
+
+      this.postingsRead += count;
+    }
+
+    list.docIteratorFinish ();
+  }
+
+  /**
+   *  Read an argument's postings only at the documents that have
+   *  accumulators, which are in docid order.
+   *  @param i The index of the argument.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void readLive (int i) throws IOException {
+
+    QryIop list = this.lists[i];
+
+    for (int j = 0; j < this.liveSize; j++) {
+      int docid = this.live[j];
+
+      list.docIteratorAdvanceTo (docid);
+
+      if (! list.docIteratorHasMatch (this.model))
+        return;
+
+      if (list.docIteratorGetMatch () == docid)
+        this.accumulate (i, docid);
+    }
+  }
+
+  /**
+   *  Add an argument's score in a document to its accumulator.
+   *  @param i The index of the argument.
+   *  @param docid The document, which the argument matches.
+   *  @throws IOException Error accessing the Lucene index.
+   */
+  private void accumulate (int i, int docid) throws IOException {
+
+    this.postingsRead++;
+
+    if (this.sum) {
+      this.acc[docid] += this.scorers[i].getScore (this.model);
+    } else {
+
+      //  QrySopOr truncates each argument's score to an int.
+
+      int score = (int) this.scorers[i].getScore (this.model);
+      this.acc[docid] = Math.max (this.acc[docid], score);
+    }
+  }
+
+  /**
+   *  Get the k'th largest accumulator.
+   *  @return The k'th largest accumulator, or negative infinity if
+   *  there are fewer than k.
+   */
+  private double getThreshold () {
+
+    if (this.liveSize < this.depth)
+      return Double.NEGATIVE_INFINITY;
+
+    int size = 0;
+
+    for (int j = 0; j < this.liveSize; j++) {
+      double score = this.acc[this.live[j]];
+
+      if (size < this.depth) {
+        int c = size++;
+
+        while ((c > 0) && (this.heap[(c - 1) >>> 1] > score)) {
+          this.heap[c] = this.heap[(c - 1) >>> 1];
+          c = (c - 1) >>> 1;
+        }
+
+        this.heap[c] = score;
+      } else if (score > this.heap[0]) {
+        int c = 0;
+
+        while (true) {
+          int child = 2 * c + 1;
+
+          if (child >= size)
+            break;
+
+          if ((child + 1 < size) && (this.heap[child + 1] < this.heap[child]))
+            child++;
+
+          if (this.heap[child] >= score)
+            break;
+
+          this.heap[c] = this.heap[child];
+          c = child;
+        }
+
+        this.heap[c] = score;
+      }
+    }
+
+    return this.heap[0];
+  }
+
+  /**
+   *  Drop the accumulators that are less than a score.  The order of
+   *  the others doesn't change.
+   *  @param score The score.
+   */
+  private void dropBelow (double score) {
+
+    int kept = 0;
+
+    for (int j = 0; j < this.liveSize; j++) {
+      int docid = this.live[j];
+
+      if (this.acc[docid] >= score)
+        this.live[kept++] = docid;
+    }
+
+    this.accumulatorsDropped += this.liveSize - kept;
+    this.liveSize = kept;
+  }
+
+  /**
+   *  Get a report of the work done:  the postings that were read, the
+   *  accumulators that were created and dropped, and the argument
+   *  after which accumulators stopped being created.
+   *  @return The report.
+   */
+  public String getPruningReport () {
+    return "Term-at-a-time:  " + this.postingsRead + " postings read, " +
+      this.accumulatorsCreated + " accumulators, " + this.accumulatorsDropped +
+      " dropped" + ((this.pruneAfter < 0) ? "" :
+                    ", no new accumulators after argument " + (this.pruneAfter + 1));
+  }
+}
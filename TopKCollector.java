@@ -0,0 +1,219 @@
+/**
+ *  Copyright (c) 2016, Carnegie Mellon University.  All Rights Reserved.
+ */
+
+import java.io.*;
+
+/**
+ *  Collects the top k documents of a query during DAAT evaluation.
+ *  Documents are ranked as ScoreList sorts them:  by decreasing score,
+ *  then by increasing external id.  The collector is a min-heap of
+ *  the k best documents so far, so memory and time grow with k, not
+ *  with the number of matching documents.
+ *  <p>
+ *  External ids are read from the index only when two documents have
+ *  the same score, and each is read at most once.  Once the collector
+ *  is full, getThreshold is the score that a document must reach to
+ *  enter it, which pruning evaluators use to skip documents.
+ *  </p>
+ */
+public class TopKCollector {
+
+  //  --------------- Constants and variables -----------------------
+
+  private int depth;
+
+  /**
+   *  The heap, stored in parallel arrays.  Entry 0 is the worst
+   *  document.  An external id is null until it is read.
+   */
+  private int[] docids;
+  private double[] scores;
+  private String[] externalIds;
+  private int size = 0;
+
+  /**
+   *  The external id of the document that is being offered, if it
+   *  was read while it was compared.
+   */
+  private String offeredExternalId;
+
+  //  --------------- Methods ---------------------------------------
+
+  /**
+   *  Create an empty collector.
+   *  @param depth The number of documents to keep.
+   *  @throws IllegalArgumentException depth is less than 1.
+   */
+  public TopKCollector (int depth) {
+
+    if (depth < 1) {
+      throw new IllegalArgumentException ("The collector depth must be at least 1.");
+    }
+
+    this.depth = depth;
+    this.docids = new int[depth];
+    this.scores = new double[depth];
+    this.externalIds = new String[depth];
+  }
+
+  /**
+   *  Offer a document to the collector.
+   *  @param docid An internal document id.
+   *  @param score The document's score.
+   *  @return True if the document is in the top k now.
+   */
+  public boolean collect (int docid, double score) {
+
+    this.offeredExternalId = null;
+
+    if (this.size < this.depth) {
+      int i = this.size++;
+
+      this.docids[i] = docid;
+      this.scores[i] = score;
+      this.externalIds[i] = null;
+      this.siftUp (i);
+      return true;
+    }
+
+    //  The document must be better than the worst document.
+
+    if ((score < this.scores[0]) ||
+        ((score == this.scores[0]) &&
+         (this.getOfferedExternalId (docid).compareTo (this.getExternalId (0)) > 0))) {
+      return false;
+    }
+
+    this.docids[0] = docid;
+    this.scores[0] = score;
+    this.externalIds[0] = this.offeredExternalId;
+    this.siftDown (0);
+    return true;
+  }
+
+  /**
+   *  Get the score that a document must reach to enter the collector.
+   *  A document with exactly this score may enter, if its external id
+   *  sorts first.
+   *  @return The score of the worst document, or negative infinity if
+   *  the collector isn't full.
+   */
+  public double getThreshold () {
+    return (this.size < this.depth) ? Double.NEGATIVE_INFINITY : this.scores[0];
+  }
+
+  /**
+   *  Returns true if the collector holds depth documents.
+   *  @return True if the collector is full.
+   */
+  public boolean isFull () {
+    return this.size == this.depth;
+  }
+
+  /**
+   *  Get the number of documents in the collector.
+   *  @return The number of documents.
+   */
+  public int size () {
+    return this.size;
+  }
+
+  /**
+   *  Get the collected documents.
+   *  @return A sorted score list.
+   */
+  public ScoreList getScoreList () {
+
+    ScoreList r = new ScoreList ();
+
+    for (int i = 0; i < this.size; i++)
+      r.add (this.docids[i], this.scores[i]);
+
+    r.sort ();
+    return r;
+  }
+
+  /**
+   *  Returns true if heap entry i ranks below entry j.
+   */
+  private boolean isWorse (int i, int j) {
+    if (this.scores[i] != this.scores[j])
+      return this.scores[i] < this.scores[j];
+
+    return this.getExternalId (i).compareTo (this.getExternalId (j)) > 0;
+  }
+
+  private void siftUp (int i) {
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+
+      if (! this.isWorse (i, parent))
+        return;
+
+      this.swap (i, parent);
+      i = parent;
+    }
+  }
+
+  private void siftDown (int i) {
+    while (true) {
+      int worst = i;
+      int left = 2 * i + 1;
+      int right = left + 1;
+
+      if ((left < this.size) && this.isWorse (left, worst))
+        worst = left;
+
+      if ((right < this.size) && this.isWorse (right, worst))
+        worst = right;
+
+      if (worst == i)
+        return;
+
+      this.swap (i, worst);
+      i = worst;
+    }
+  }
+
+  private void swap (int i, int j) {
+    int docid = this.docids[i];
+    double score = this.scores[i];
+    String externalId = this.externalIds[i];
+
+    this.docids[i] = this.docids[j];
+    this.scores[i] = this.scores[j];
+    this.externalIds[i] = this.externalIds[j];
+    this.docids[j] = docid;
+    this.scores[j] = score;
+    this.externalIds[j] = externalId;
+  }
+
+  /**
+   *  Get the external id of heap entry i, reading it if necessary.
+   */
+  private String getExternalId (int i) {
+    if (this.externalIds[i] == null)
+      this.externalIds[i] = TopKCollector.readExternalId (this.docids[i]);
+
+    return this.externalIds[i];
+  }
+
+  /**
+   *  Get the external id of the document that is being offered.
+   */
+  private String getOfferedExternalId (int docid) {
+    if (this.offeredExternalId == null)
+      this.offeredExternalId = TopKCollector.readExternalId (docid);
+
+    return this.offeredExternalId;
+  }
+
+  private static String readExternalId (int docid) {
+    try {
+      return Idx.getExternalDocid (docid);
+    } catch (IOException ex) {
+      throw new IllegalStateException (ex);
+    }
+  }
+}